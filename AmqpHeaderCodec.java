@@ -0,0 +1,152 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores AMQP message headers as JSON without losing their types. Every value is written with a type tag, so that
+ * a `Long` is read back as a `Long` and a `Date` as a `Date`, as the x-death header of a replayed message must be.
+ * Values of other types are stored as strings.
+ */
+public final class AmqpHeaderCodec {
+
+    private static final String TYPE = "t";
+
+    private static final String VALUE = "v";
+
+    private AmqpHeaderCodec() {
+    }
+
+    /**
+     * @param objectMapper object mapper
+     * @param headers the message headers
+     * @return JSON representation of the headers
+     * @throws IOException if the headers cannot be written
+     */
+    public static String encode(ObjectMapper objectMapper, Map<String, Object> headers) throws IOException {
+        ObjectNode node = objectMapper.createObjectNode();
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            node.set(header.getKey(), encodeValue(objectMapper, header.getValue()));
+        }
+        return objectMapper.writeValueAsString(node);
+    }
+
+    /**
+     * @param objectMapper object mapper
+     * @param json JSON representation of the headers, written by {@link #encode(ObjectMapper, Map)}
+     * @return the message headers
+     * @throws IOException if the headers cannot be read
+     */
+    public static Map<String, Object> decode(ObjectMapper objectMapper, String json) throws IOException {
+        Map<String, Object> headers = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = objectMapper.readTree(json).fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            headers.put(field.getKey(), decodeValue(objectMapper, field.getValue()));
+        }
+        return headers;
+    }
+
+    private static JsonNode encodeValue(ObjectMapper objectMapper, Object value) {
+        ObjectNode node = objectMapper.createObjectNode();
+        if (value == null) {
+            node.put(TYPE, "null");
+        } else if (value instanceof Long l) {
+            node.put(TYPE, "long").put(VALUE, l);
+        } else if (value instanceof Integer i) {
+            node.put(TYPE, "int").put(VALUE, i);
+        } else if (value instanceof Short s) {
+            node.put(TYPE, "short").put(VALUE, s);
+        } else if (value instanceof Byte b) {
+            node.put(TYPE, "byte").put(VALUE, b);
+        } else if (value instanceof Double d) {
+            node.put(TYPE, "double").put(VALUE, d);
+        } else if (value instanceof Float f) {
+            node.put(TYPE, "float").put(VALUE, f);
+        } else if (value instanceof BigDecimal d) {
+            node.put(TYPE, "decimal").put(VALUE, d.toString());
+        } else if (value instanceof Boolean b) {
+            node.put(TYPE, "boolean").put(VALUE, b);
+        } else if (value instanceof Date d) {
+            node.put(TYPE, "date").put(VALUE, d.getTime());
+        } else if (value instanceof byte[] bytes) {
+            node.put(TYPE, "bytes").put(VALUE, Base64.getEncoder().encodeToString(bytes));
+        } else if (value instanceof List<?> list) {
+            ArrayNode elements = node.put(TYPE, "list").putArray(VALUE);
+            for (Object element : list) {
+                elements.add(encodeValue(objectMapper, element));
+            }
+        } else if (value instanceof Map<?, ?> map) {
+            ObjectNode entries = node.put(TYPE, "map").putObject(VALUE);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                entries.set(String.valueOf(entry.getKey()), encodeValue(objectMapper, entry.getValue()));
+            }
+        } else {
+            node.put(TYPE, "string").put(VALUE, value.toString());
+        }
+        return node;
+    }
+
+    private static Object decodeValue(ObjectMapper objectMapper, JsonNode node) throws IOException {
+        if (!node.isObject() || !node.has(TYPE)) {
+            // Headers stored without type tags
+            return objectMapper.treeToValue(node, Object.class);
+        }
+
+        JsonNode value = node.get(VALUE);
+        switch (node.get(TYPE).asText()) {
+            case "null":
+                return null;
+            case "long":
+                return value.asLong();
+            case "int":
+                return value.asInt();
+            case "short":
+                return (short) value.asInt();
+            case "byte":
+                return (byte) value.asInt();
+            case "double":
+                return value.asDouble();
+            case "float":
+                return (float) value.asDouble();
+            case "decimal":
+                return new BigDecimal(value.asText());
+            case "boolean":
+                return value.asBoolean();
+            case "date":
+                return new Date(value.asLong());
+            case "bytes":
+                return Base64.getDecoder().decode(value.asText());
+            case "list":
+                List<Object> list = new ArrayList<>();
+                for (JsonNode element : value) {
+                    list.add(decodeValue(objectMapper, element));
+                }
+                return list;
+            case "map":
+                Map<String, Object> map = new LinkedHashMap<>();
+                Iterator<Map.Entry<String, JsonNode>> entries = value.fields();
+                while (entries.hasNext()) {
+                    Map.Entry<String, JsonNode> entry = entries.next();
+                    map.put(entry.getKey(), decodeValue(objectMapper, entry.getValue()));
+                }
+                return map;
+            case "string":
+                return value.asText();
+            default:
+                throw new IOException(String.format("Unknown header type '%s'", node.get(TYPE).asText()));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AmqpHeaderCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void roundTripKeepsTheXDeathTypes() throws Exception {
+        Date time = new Date(1700000000000L);
+        Map<String, Object> death = new LinkedHashMap<>();
+        death.put("count", 3L);
+        death.put("reason", "rejected");
+        death.put("queue", "request");
+        death.put("time", time);
+        death.put("exchange", "requests");
+        death.put("routing-keys", List.of("doc_create"));
+        Map<String, Object> headers = new LinkedHashMap<>();
+        headers.put("x-death", List.of(death));
+
+        Map<String, Object> decoded = AmqpHeaderCodec.decode(this.objectMapper, AmqpHeaderCodec.encode(this.objectMapper, headers));
+
+        List<?> xDeath = assertInstanceOf(List.class, decoded.get("x-death"));
+        Map<?, ?> decodedDeath = assertInstanceOf(Map.class, xDeath.get(0));
+        assertEquals(3L, assertInstanceOf(Long.class, decodedDeath.get("count")));
+        assertEquals(time, assertInstanceOf(Date.class, decodedDeath.get("time")));
+        assertEquals(List.of("doc_create"), decodedDeath.get("routing-keys"));
+        assertEquals(death, decodedDeath);
+    }
+
+    @Test
+    void roundTripKeepsTheScalarTypes() throws Exception {
+        Map<String, Object> headers = new LinkedHashMap<>();
+        headers.put("int", 1);
+        headers.put("long", 2L);
+        headers.put("short", (short) 3);
+        headers.put("byte", (byte) 4);
+        headers.put("double", 5.5d);
+        headers.put("float", 6.5f);
+        headers.put("decimal", new BigDecimal("7.25"));
+        headers.put("boolean", true);
+        headers.put("string", "value");
+        headers.put("null", null);
+
+        Map<String, Object> decoded = AmqpHeaderCodec.decode(this.objectMapper, AmqpHeaderCodec.encode(this.objectMapper, headers));
+
+        assertEquals(headers, decoded);
+        assertNull(decoded.get("null"));
+    }
+
+    @Test
+    void roundTripKeepsBinaryValues() throws Exception {
+        Map<String, Object> headers = Map.of("bytes", new byte[]{1, 2, 3});
+
+        Map<String, Object> decoded = AmqpHeaderCodec.decode(this.objectMapper, AmqpHeaderCodec.encode(this.objectMapper, headers));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) decoded.get("bytes"));
+    }
+
+    @Test
+    void decodesUntaggedHeaders() throws Exception {
+        Map<String, Object> decoded = AmqpHeaderCodec.decode(this.objectMapper, "{\"correlation\":\"abc\",\"attempt\":2}");
+
+        assertEquals("abc", decoded.get("correlation"));
+        assertEquals(2, decoded.get("attempt"));
+    }
+}
@@ -0,0 +1,218 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.exception.CMXUnavailableException;
+import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Removes from CMX the documents of the status files that have failed. Documents are recorded in the compensation
+ * journal as soon as they are uploaded and removed from it when their status records are committed, so every journal
+ * entry is a document that may have to be deleted.
+ * <p>
+ * Failed status files are compensated right away, with the documents deleted in parallel and every delete retried
+ * with an exponential backoff. Entries that could not be deleted, or that were left behind by an instance that
+ * stopped before completing, are picked up by a periodic sweep once they are older than the grace period and their
+ * status file is no longer leased.
+ * <p>
+ * Deletes are not counted by the CMX limiter and circuit breaker, which protect the uploads. Nothing is deleted while
+ * the breaker is open: the entries stay in the journal for the sweep, without consuming their attempts.
+ */
+@Service
+public class CMXCompensationService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(CMXCompensationService.class);
+
+    private final CMXClientService cmxClientService;
+
+    private final CMXLoadGuard loadGuard;
+
+    private final ClientService clientService;
+
+    private final ExecutorService deleters;
+
+    private final int maxAttempts;
+
+    private final Duration retryDelay;
+
+    private final Duration gracePeriod;
+
+    private final Duration lease;
+
+    private final int batchSize;
+
+    private final Timer compensationTimer;
+
+    private final Counter deleted;
+
+    private final Counter failed;
+
+    /**
+     * Default constructor
+     *
+     * @param cmxClientService CMX client
+     * @param loadGuard concurrency limiter and circuit breaker protecting CMX
+     * @param clientService database service dealing with the client data
+     * @param registry meter registry
+     * @param threads number of documents deleted in parallel
+     * @param maxAttempts number of times a delete is attempted before the document is left for the sweep
+     * @param retryDelay delay before the first retry of a delete, doubled on every retry
+     * @param gracePeriod minimum age of the journal entries compensated by the sweep
+     * @param lease time a journal entry claimed by the sweep is reserved to this instance
+     * @param batchSize maximum number of journal entries compensated per sweep
+     */
+    public CMXCompensationService(CMXClientService cmxClientService,
+                                  CMXLoadGuard loadGuard,
+                                  ClientService clientService,
+                                  MeterRegistry registry,
+                                  @Value("${cmx.compensation.threads:4}") int threads,
+                                  @Value("${cmx.compensation.max_attempts:3}") int maxAttempts,
+                                  @Value("${cmx.compensation.retry_delay:PT1S}") Duration retryDelay,
+                                  @Value("${cmx.compensation.grace_period:PT30M}") Duration gracePeriod,
+                                  @Value("${cmx.compensation.lease:PT10M}") Duration lease,
+                                  @Value("${cmx.compensation.batch_size:100}") int batchSize) {
+        this.cmxClientService = cmxClientService;
+        this.loadGuard = loadGuard;
+        this.clientService = clientService;
+        this.deleters = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("cmx-compensation-", 0).daemon(true).factory());
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.gracePeriod = gracePeriod;
+        this.lease = lease;
+        this.batchSize = batchSize;
+        this.compensationTimer = Timer.builder("cmx_compensation_time")
+                .description("Time spent removing the CMX documents of a failed status file")
+                .register(registry);
+        this.deleted = Counter.builder("cmx.compensation.documents")
+                .description("Number of CMX documents removed by compensation")
+                .tag("result", "deleted")
+                .register(registry);
+        this.failed = Counter.builder("cmx.compensation.documents")
+                .description("Number of CMX documents removed by compensation")
+                .tag("result", "failed")
+                .register(registry);
+    }
+
+    /**
+     * Deletes the documents from CMX in parallel and waits for all the deletes to complete. Documents that cannot be
+     * deleted stay in the journal and are retried by the sweep. Documents no longer in the journal have been reused
+     * and committed by a later attempt of their status file, and are not deleted.
+     *
+     * @param documentIds the CMX document IDs
+     */
+    public void compensate(Collection<String> documentIds) {
+        if (documentIds.isEmpty()) {
+            return;
+        }
+        if (this.loadGuard.isOpen()) {
+            logger.info("CMX circuit breaker is open, leaving {} document(s) for the sweep", documentIds.size());
+            return;
+        }
+
+        try {
+            documentIds = this.clientService.findCMXCompensationEntries(documentIds);
+        } catch (ServiceException e) {
+            logger.warn("Cannot check the CMX compensation journal, leaving {} document(s) for the sweep", documentIds.size());
+            return;
+        }
+        if (documentIds.isEmpty()) {
+            return;
+        }
+
+        logger.info("Removing {} document(s) from CMX", documentIds.size());
+        this.compensationTimer.record(() -> {
+            List<CompletableFuture<Void>> deletes = new ArrayList<>();
+            for (String documentId : documentIds) {
+                try {
+                    deletes.add(CompletableFuture.runAsync(Context.current().wrap(() -> this.delete(documentId)), this.deleters));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Cannot schedule the deletion of CMX document '{}', leaving it for the sweep", documentId);
+                }
+            }
+            CompletableFuture.allOf(deletes.toArray(new CompletableFuture[0])).join();
+        });
+    }
+
+    /**
+     * Compensates the journal entries older than the grace period
+     */
+    @Scheduled(fixedDelayString = "${cmx.compensation.sweep_interval:60000}")
+    public void sweep() {
+        if (this.loadGuard.isOpen()) {
+            logger.debug("CMX circuit breaker is open, skipping the CMX compensation sweep");
+            return;
+        }
+
+        try {
+            List<String> documentIds;
+            do {
+                documentIds = this.clientService.claimCMXCompensationEntries(this.gracePeriod, this.lease, this.batchSize);
+                if (!documentIds.isEmpty()) {
+                    logger.info("Resuming the compensation of {} CMX document(s)", documentIds.size());
+                    this.compensate(documentIds);
+                }
+            } while (documentIds.size() == this.batchSize);
+        } catch (Throwable e) {
+            logger.error("Cannot sweep the CMX compensation journal: {}", e.getMessage());
+        }
+    }
+
+    private void delete(String documentId) {
+        long delay = this.retryDelay.toMillis();
+        boolean removedFromCMX = false;
+        for (int attempt = 1; attempt <= this.maxAttempts; attempt++) {
+            try {
+                // Only the journal entry is removed again if the document has already been deleted
+                if (!removedFromCMX) {
+                    this.loadGuard.callUncounted(String.format("delete CMX document '%s'", documentId), () -> {
+                        this.cmxClientService.deleteDocument(documentId);
+                        return null;
+                    });
+                    removedFromCMX = true;
+                }
+                this.clientService.deleteCMXCompensationEntries(List.of(documentId));
+                this.deleted.increment();
+                return;
+            } catch (CMXUnavailableException e) {
+                logger.warn("Cannot delete CMX document with ID '{}', leaving it for the sweep: {}", documentId, e.getMessage());
+                return;
+            } catch (Throwable e) {
+                logger.warn("Cannot delete CMX document with ID '{}' (attempt {}/{}): {}", documentId, attempt, this.maxAttempts, e.getMessage());
+            }
+
+            if (attempt < this.maxAttempts) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                delay *= 2;
+            }
+        }
+
+        this.failed.increment();
+        logger.error("Could not delete CMX document with ID '{}', leaving it for the sweep", documentId);
+    }
+
+    @Override
+    public void destroy() {
+        this.deleters.shutdownNow();
+    }
+}
@@ -0,0 +1,13 @@
+package axa.partners.clp.mrtdocumentbridge.data;
+
+import java.time.LocalDateTime;
+
+/**
+ * CMX document stored for a client request.
+ *
+ * @param documentId CMX document ID
+ * @param createdAt CMX document creation timestamp
+ * @param sha256 SHA-256 digest of the uploaded document (lower case hexadecimal representation)
+ */
+public record CMXDocumentReference(String documentId, LocalDateTime createdAt, String sha256) {
+}
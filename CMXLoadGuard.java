@@ -0,0 +1,254 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.exception.CMXUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects CMX from overload. Calls go through an adaptive concurrency limiter and a circuit breaker.
+ * <p>
+ * The limiter uses additive increase, multiplicative decrease: the limit grows by one after a full limit worth of
+ * fast calls, and is cut by the backoff ratio when a call fails or is slower than the latency threshold. Calls wait
+ * for a free slot up to the maximum wait time and are rejected after that.
+ * <p>
+ * The circuit breaker opens after a number of consecutive failures and rejects all the calls while open. Once the
+ * open duration has passed, a single trial call is let through: the breaker closes if it succeeds and opens again
+ * otherwise.
+ * <p>
+ * Uncounted calls, such as the compensation deletes, share the concurrency slots but their outcome feeds neither the
+ * limiter nor the breaker, so they cannot open the breaker or shrink the limit of the uploads. They are rejected
+ * while the breaker is not closed and are never the trial call.
+ */
+@Service
+public class CMXLoadGuard {
+    private static final Logger logger = LoggerFactory.getLogger(CMXLoadGuard.class);
+
+    /**
+     * Call to CMX
+     */
+    @FunctionalInterface
+    public interface CMXCall<T> {
+        T execute() throws Exception;
+    }
+
+    private enum BreakerState {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final Duration latencyThreshold;
+
+    private final double backoffRatio;
+
+    private final Duration maxWait;
+
+    private final int failureThreshold;
+
+    private final Duration openDuration;
+
+    private final Counter limitRejections;
+
+    private final Counter breakerRejections;
+
+    private double limit;
+
+    private int inFlight;
+
+    private int consecutiveFailures;
+
+    private BreakerState state;
+
+    private Instant openedAt;
+
+    /**
+     * Default constructor
+     *
+     * @param registry meter registry
+     * @param initialLimit initial number of concurrent CMX calls
+     * @param minLimit minimum number of concurrent CMX calls
+     * @param maxLimit maximum number of concurrent CMX calls
+     * @param latencyThreshold call latency above which the limit is decreased
+     * @param backoffRatio factor applied to the limit when it is decreased
+     * @param maxWait maximum time a call waits for a free slot before it is rejected
+     * @param failureThreshold number of consecutive failures opening the circuit breaker
+     * @param openDuration time the circuit breaker stays open before a trial call is let through
+     */
+    public CMXLoadGuard(MeterRegistry registry,
+                        @Value("${cmx.limiter.initial_limit:4}") int initialLimit,
+                        @Value("${cmx.limiter.min_limit:1}") int minLimit,
+                        @Value("${cmx.max_concurrent_uploads:4}") int maxLimit,
+                        @Value("${cmx.limiter.latency_threshold:PT5S}") Duration latencyThreshold,
+                        @Value("${cmx.limiter.backoff_ratio:0.5}") double backoffRatio,
+                        @Value("${cmx.limiter.max_wait:PT30S}") Duration maxWait,
+                        @Value("${cmx.circuit_breaker.failure_threshold:5}") int failureThreshold,
+                        @Value("${cmx.circuit_breaker.open_duration:PT1M}") Duration openDuration) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+        this.latencyThreshold = latencyThreshold;
+        this.backoffRatio = backoffRatio;
+        this.maxWait = maxWait;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.state = BreakerState.CLOSED;
+
+        Gauge.builder("cmx.limiter.limit", this, CMXLoadGuard::currentLimit)
+                .description("Current number of concurrent CMX calls allowed")
+                .register(registry);
+        Gauge.builder("cmx.limiter.in_flight", this, CMXLoadGuard::currentInFlight)
+                .description("Number of CMX calls in progress")
+                .register(registry);
+        Gauge.builder("cmx.circuit_breaker.state", this, CMXLoadGuard::currentState)
+                .description("CMX circuit breaker state: 0 closed, 1 half-open, 2 open")
+                .register(registry);
+        this.limitRejections = Counter.builder("cmx.limiter.rejections")
+                .description("Number of CMX calls rejected")
+                .tag("reason", "limit")
+                .register(registry);
+        this.breakerRejections = Counter.builder("cmx.limiter.rejections")
+                .description("Number of CMX calls rejected")
+                .tag("reason", "circuit_open")
+                .register(registry);
+    }
+
+    /**
+     * Executes the call when a slot is available
+     *
+     * @param operation description of the call, used in the messages
+     * @param call the call
+     * @return result of the call
+     * @throws CMXUnavailableException if the call is rejected
+     * @throws Exception if the call fails
+     */
+    public <T> T call(String operation, CMXCall<T> call) throws Exception {
+        boolean trial = this.acquire(operation, true);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = call.execute();
+            succeeded = true;
+            return result;
+        } finally {
+            this.release(trial, succeeded, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Executes the call when a slot is available, without its outcome being counted by the limiter and the circuit
+     * breaker
+     *
+     * @param operation description of the call, used in the messages
+     * @param call the call
+     * @return result of the call
+     * @throws CMXUnavailableException if the call is rejected
+     * @throws Exception if the call fails
+     */
+    public <T> T callUncounted(String operation, CMXCall<T> call) throws Exception {
+        this.acquire(operation, false);
+        try {
+            return call.execute();
+        } finally {
+            this.releaseUncounted();
+        }
+    }
+
+    /**
+     * @return true if the circuit breaker is open, in which case calls are rejected
+     */
+    public synchronized boolean isOpen() {
+        return this.state == BreakerState.OPEN && Instant.now().isBefore(this.openedAt.plus(this.openDuration));
+    }
+
+    private synchronized boolean acquire(String operation, boolean counted) throws CMXUnavailableException, InterruptedException {
+        boolean trial = false;
+        if (!counted && this.state != BreakerState.CLOSED) {
+            // The trial call must be counted, or the breaker would stay half-open
+            this.breakerRejections.increment();
+            throw new CMXUnavailableException(String.format("Cannot %s: CMX circuit breaker is not closed", operation));
+        }
+        if (this.state == BreakerState.OPEN) {
+            if (this.isOpen()) {
+                this.breakerRejections.increment();
+                throw new CMXUnavailableException(String.format("Cannot %s: CMX circuit breaker is open", operation));
+            }
+            logger.info("CMX circuit breaker is half-open, letting a trial call through");
+            this.state = BreakerState.HALF_OPEN;
+            trial = true;
+        } else if (this.state == BreakerState.HALF_OPEN) {
+            this.breakerRejections.increment();
+            throw new CMXUnavailableException(String.format("Cannot %s: CMX circuit breaker is half-open", operation));
+        }
+
+        long deadline = System.nanoTime() + this.maxWait.toNanos();
+        while (this.inFlight >= (int) this.limit && !trial) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                this.limitRejections.increment();
+                throw new CMXUnavailableException(String.format("Cannot %s: CMX concurrency limit of %d reached", operation, (int) this.limit));
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            if (this.state == BreakerState.OPEN) {
+                this.breakerRejections.increment();
+                throw new CMXUnavailableException(String.format("Cannot %s: CMX circuit breaker is open", operation));
+            }
+        }
+
+        this.inFlight++;
+        return trial;
+    }
+
+    private synchronized void release(boolean trial, boolean succeeded, long elapsedNanos) {
+        this.inFlight--;
+
+        if (succeeded && elapsedNanos <= this.latencyThreshold.toNanos()) {
+            this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+        } else {
+            this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+        }
+
+        if (succeeded) {
+            if (this.state != BreakerState.CLOSED) {
+                logger.info("CMX circuit breaker is closed");
+            }
+            this.consecutiveFailures = 0;
+            this.state = BreakerState.CLOSED;
+        } else if (trial || ++this.consecutiveFailures >= this.failureThreshold) {
+            if (this.state != BreakerState.OPEN) {
+                logger.warn("CMX circuit breaker is open after {} consecutive failure(s)", Math.max(1, this.consecutiveFailures));
+            }
+            this.state = BreakerState.OPEN;
+            this.openedAt = Instant.now();
+        }
+
+        this.notifyAll();
+    }
+
+    private synchronized void releaseUncounted() {
+        this.inFlight--;
+        this.notifyAll();
+    }
+
+    private synchronized double currentLimit() {
+        return (int) this.limit;
+    }
+
+    private synchronized double currentInFlight() {
+        return this.inFlight;
+    }
+
+    private synchronized double currentState() {
+        return this.state.ordinal();
+    }
+}
@@ -0,0 +1,12 @@
+package axa.partners.clp.mrtdocumentbridge.exception;
+
+/**
+ * Thrown when a CMX call is not attempted because the circuit breaker is open or the concurrency limit has been
+ * reached. The call can be retried later.
+ */
+public class CMXUnavailableException extends ServiceException {
+
+    public CMXUnavailableException(String message) {
+        super(message);
+    }
+}
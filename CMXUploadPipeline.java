@@ -0,0 +1,139 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.data.cmx.AddDocumentResponse;
+import axa.partners.clp.mrtdocumentbridge.data.cmx.Metadata;
+import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.opentelemetry.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads documents to CMX in parallel on a thread pool. Every upload is a blocking
+ * {@link CMXClientService#addDocument(File, Metadata)} call on one of the pool threads, so the uploads use the
+ * transport of the CMX client as is: they are neither multiplexed over one HTTP/2 connection nor streamed by this class.
+ * <p>
+ * Uploads of all the status file workers share the pool, so the number of documents uploaded at the same time never
+ * exceeds the configured maximum. Within that maximum, the {@link CMXLoadGuard} adapts the concurrency to the CMX
+ * latency and rejects the uploads while CMX is failing. Upload latency and throughput are reported per document.
+ */
+@Service
+public class CMXUploadPipeline implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(CMXUploadPipeline.class);
+
+    private final CMXClientService cmxClientService;
+
+    private final CMXLoadGuard loadGuard;
+
+    private final ExecutorService uploaders;
+
+    private final Timer uploadTimer;
+
+    private final DistributionSummary throughput;
+
+    private final Counter uploadedBytes;
+
+    /**
+     * Default constructor
+     *
+     * @param cmxClientService CMX client
+     * @param loadGuard concurrency limiter and circuit breaker protecting CMX
+     * @param registry meter registry
+     * @param maxConcurrentUploads maximum number of documents uploaded to CMX at the same time
+     */
+    public CMXUploadPipeline(CMXClientService cmxClientService,
+                             CMXLoadGuard loadGuard,
+                             MeterRegistry registry,
+                             @Value("${cmx.max_concurrent_uploads:4}") int maxConcurrentUploads) {
+        this.cmxClientService = cmxClientService;
+        this.loadGuard = loadGuard;
+        this.uploaders = Executors.newFixedThreadPool(maxConcurrentUploads, Thread.ofPlatform().name("cmx-upload-", 0).daemon(true).factory());
+        this.uploadTimer = Timer.builder("cmx.upload_time")
+                .description("Time spent uploading a document to CMX")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.throughput = DistributionSummary.builder("cmx.upload_throughput")
+                .description("Upload throughput of a document to CMX")
+                .baseUnit("bytes/s")
+                .register(registry);
+        this.uploadedBytes = Counter.builder("cmx.uploaded_bytes")
+                .description("Number of bytes uploaded to CMX")
+                .baseUnit("bytes")
+                .register(registry);
+        logger.info("Up to {} document(s) are uploaded to CMX at the same time", maxConcurrentUploads);
+    }
+
+    /**
+     * Queues the upload of a document on the upload pool
+     *
+     * @param documentFile the document to upload
+     * @param metadata CMX metadata of the document
+     * @return future completed with the CMX response, or failed with a {@link ServiceException}
+     */
+    public CompletableFuture<AddDocumentResponse> upload(File documentFile, Metadata metadata) {
+        try {
+            return CompletableFuture.supplyAsync(Context.current().wrapSupplier(() -> this.addDocument(documentFile, metadata)), this.uploaders);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new ServiceException(String.format("Cannot upload '%s' to CMX: upload pipeline is stopped", documentFile.getName())));
+        }
+    }
+
+    /**
+     * Waits for the upload to complete
+     *
+     * @param upload future returned by {@link #upload(File, Metadata)}
+     * @return the CMX response
+     * @throws ServiceException if the upload has failed
+     */
+    public static AddDocumentResponse await(CompletableFuture<AddDocumentResponse> upload) throws ServiceException {
+        try {
+            return upload.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ServiceException serviceException) {
+                throw serviceException;
+            }
+            throw new ServiceException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        }
+    }
+
+    private AddDocumentResponse addDocument(File documentFile, Metadata metadata) {
+        long size = documentFile.length();
+        long start = System.nanoTime();
+        try {
+            AddDocumentResponse response = this.loadGuard.call(String.format("upload '%s' to CMX", documentFile.getName()),
+                    () -> this.cmxClientService.addDocument(documentFile, metadata));
+            long elapsed = System.nanoTime() - start;
+            this.uploadTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            this.uploadedBytes.increment(size);
+            if (elapsed > 0) {
+                this.throughput.record(size * 1_000_000_000d / elapsed);
+            }
+            return response;
+        } catch (Exception e) {
+            if (e instanceof ServiceException) {
+                throw new CompletionException(e);
+            }
+            logger.error("Cannot upload '{}' to CMX: {}", documentFile.getName(), e.getMessage());
+            throw new CompletionException(new ServiceException(String.format("Cannot upload '%s' to CMX: %s", documentFile.getName(), e.getMessage())));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        this.uploaders.shutdownNow();
+    }
+}
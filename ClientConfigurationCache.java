@@ -0,0 +1,271 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process cache of the `CLIENT_CONFIGURATION` table. The table is small and changes rarely, so the whole table is
+ * kept as an immutable snapshot. The snapshot is reloaded in the background when it gets older than the refresh
+ * interval or when the version poll detects a change.
+ * <p>
+ * If the table has more rows than the maximum number of entries, the cache is disabled and lookups go to the
+ * database. The disabled state is remembered like a snapshot, so the table is only loaded again once it expires or the
+ * version poll detects a change.
+ */
+@Service
+public class ClientConfigurationCache implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ClientConfigurationCache.class);
+
+    /**
+     * Cached client configuration row
+     */
+    public record Entry(String clientId,
+                        boolean enabled,
+                        String soapEndpoint,
+                        String responseExchange,
+                        String responseRoutingKey) {
+    }
+
+    /**
+     * Result of a client lookup
+     *
+     * @param served true if the cache could serve the lookup, false if the caller has to query the database
+     * @param entry the client configuration, null if not served or if the client is not in the snapshot
+     */
+    public record Lookup(boolean served, Entry entry) {
+    }
+
+    /**
+     * Loaded table, whose entries are null if the table is too large to be cached
+     */
+    private record Snapshot(Map<String, Entry> entries, long rows, long version, Instant loadedAt) {
+    }
+
+    private final DataSource dataSource;
+
+    private final int maxEntries;
+
+    private final Duration refreshAfter;
+
+    private final Duration expireAfter;
+
+    private final ExecutorService refresher;
+
+    private final AtomicBoolean refreshing;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final MeterRegistry registry;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Default constructor
+     *
+     * @param dataSource the data source used for database operations
+     * @param registry meter registry
+     * @param maxEntries maximum number of client configurations kept in memory
+     * @param refreshAfter snapshot age after which it is reloaded in the background
+     * @param expireAfter snapshot age after which it is no longer served and is reloaded synchronously
+     */
+    public ClientConfigurationCache(DataSource dataSource,
+                                    MeterRegistry registry,
+                                    @Value("${client_configuration.cache.max_entries:1000}") int maxEntries,
+                                    @Value("${client_configuration.cache.refresh_after:PT10M}") Duration refreshAfter,
+                                    @Value("${client_configuration.cache.expire_after:PT1H}") Duration expireAfter) {
+        this.dataSource = dataSource;
+        this.registry = registry;
+        this.maxEntries = maxEntries;
+        this.refreshAfter = refreshAfter;
+        this.expireAfter = expireAfter;
+        this.refreshing = new AtomicBoolean(false);
+        this.refresher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "client-configuration-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.hits = Counter.builder("client_configuration.cache.requests")
+                .description("Client configuration cache lookups")
+                .tag("result", "hit")
+                .register(registry);
+        this.misses = Counter.builder("client_configuration.cache.requests")
+                .description("Client configuration cache lookups")
+                .tag("result", "miss")
+                .register(registry);
+        Gauge.builder("client_configuration.cache.size", () -> {
+                    Snapshot current = this.snapshot;
+                    return current == null || current.entries() == null ? 0 : current.entries().size();
+                })
+                .description("Number of cached client configurations")
+                .register(registry);
+    }
+
+    /**
+     * Returns the cached client configurations keyed by client Id and ordered by client Id.
+     *
+     * @return the cached entries, or null if the cache cannot serve the lookup and the caller has to query the database
+     */
+    public Map<String, Entry> entries() {
+        Map<String, Entry> entries = this.currentEntries();
+        (entries != null ? this.hits : this.misses).increment();
+        return entries;
+    }
+
+    /**
+     * @return true if lookups can currently be served from the cache. Not counted as a lookup.
+     */
+    public boolean isAvailable() {
+        return this.currentEntries() != null;
+    }
+
+    /**
+     * Looks up the configuration of a client. A client missing from the snapshot counts as a miss, the caller has to
+     * query the database. It is picked up by the next reload.
+     *
+     * @param clientId the client Id
+     * @return result of the lookup
+     */
+    public Lookup lookup(String clientId) {
+        Map<String, Entry> entries = this.currentEntries();
+        Entry entry = entries != null ? entries.get(clientId) : null;
+        (entry != null ? this.hits : this.misses).increment();
+        return new Lookup(entries != null, entry);
+    }
+
+    /**
+     * @return the snapshot entries, null if the table is too large to be cached or cannot be loaded
+     */
+    private Map<String, Entry> currentEntries() {
+        Snapshot current = this.snapshot;
+        if (current == null || this.isExpired(current)) {
+            current = this.reload("expiry");
+        } else if (current.loadedAt().plus(this.refreshAfter).isBefore(Instant.now())) {
+            this.refreshAsync("refresh_ahead");
+        }
+        return current != null ? current.entries() : null;
+    }
+
+    private boolean isExpired(Snapshot snapshot) {
+        return snapshot.loadedAt().plus(this.expireAfter).isBefore(Instant.now());
+    }
+
+    /**
+     * Polls the configuration version and reloads the snapshot in the background if it has changed
+     */
+    @Scheduled(fixedDelayString = "${client_configuration.cache.poll_interval:30000}")
+    public void pollVersion() {
+        Snapshot current = this.snapshot;
+        if (current == null) {
+            return;
+        }
+
+        try (Connection conn = this.dataSource.getConnection()) {
+            try (Statement st = conn.createStatement()) {
+                try (ResultSet rs = st.executeQuery("""
+                        SELECT count(*), coalesce(max(version), 0) FROM CLIENT_CONFIGURATION
+                    """)) {
+                    if (rs.next() && (rs.getLong(1) != current.rows() || rs.getLong(2) != current.version())) {
+                        logger.info("Client configuration has changed. Reloading the cache");
+                        this.refreshAsync("version");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Cannot poll client configuration version: {}", e.getMessage());
+        }
+    }
+
+    private void refreshAsync(String trigger) {
+        if (this.refreshing.compareAndSet(false, true)) {
+            this.refresher.execute(() -> {
+                try {
+                    this.reload(trigger);
+                } finally {
+                    this.refreshing.set(false);
+                }
+            });
+        }
+    }
+
+    private synchronized Snapshot reload(String trigger) {
+        // Callers waiting for the lock do not reload again what has just been loaded
+        Snapshot current = this.snapshot;
+        if (trigger.equals("expiry") && current != null && !this.isExpired(current)) {
+            return current;
+        }
+
+        Counter.builder("client_configuration.cache.refreshes")
+                .description("Client configuration cache reloads")
+                .tag("trigger", trigger)
+                .register(this.registry)
+                .increment();
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        long rows = 0;
+        long version = 0;
+        try (Connection conn = this.dataSource.getConnection()) {
+            try (Statement st = conn.createStatement()) {
+                try (ResultSet rs = st.executeQuery("""
+                        SELECT client_id, is_enabled, soap_endpoint, response_exchange, response_routing_key, version
+                        FROM CLIENT_CONFIGURATION ORDER BY client_id
+                    """)) {
+                    while (rs.next()) {
+                        // Rows and version are still counted when the table is too large, for the version poll
+                        if (++rows <= this.maxEntries) {
+                            entries.put(rs.getString(1), new Entry(
+                                    rs.getString(1),
+                                    rs.getBoolean(2),
+                                    rs.getString(3),
+                                    rs.getString(4),
+                                    rs.getString(5)));
+                        }
+                        version = Math.max(version, rs.getLong(6));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Cannot load client configuration cache: {}", e.getMessage());
+            return current;
+        }
+
+        if (rows > this.maxEntries) {
+            logger.warn("More than {} client configurations found. Client configuration cache is disabled until the table changes", this.maxEntries);
+            this.snapshot = new Snapshot(null, rows, version, Instant.now());
+            return this.snapshot;
+        }
+
+        Snapshot loaded = new Snapshot(Collections.unmodifiableMap(entries), rows, version, Instant.now());
+        this.snapshot = loaded;
+        logger.debug("Loaded {} client configuration(s), version {}", entries.size(), version);
+        return loaded;
+    }
+
+    @Override
+    public void destroy() {
+        this.refresher.shutdownNow();
+    }
+}
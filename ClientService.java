@@ -1,15 +1,26 @@
 package axa.partners.clp.mrtdocumentbridge.service;
 
+import axa.partners.clp.mrtdocumentbridge.data.CMXDocumentReference;
 import axa.partners.clp.mrtdocumentbridge.data.ClientRequestAndRoutingDetails;
 import axa.partners.clp.mrtdocumentbridge.data.Document;
+import axa.partners.clp.mrtdocumentbridge.data.ExistingClientRequests;
 import axa.partners.clp.mrtdocumentbridge.data.Request;
 import axa.partners.clp.mrtdocumentbridge.data.Response;
 import axa.partners.clp.mrtdocumentbridge.data.harmonie.StatusDocument;
 import axa.partners.clp.mrtdocumentbridge.data.internal.ClientConfiguration;
+import axa.partners.clp.mrtdocumentbridge.exception.CMXUnavailableException;
 import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
-import axa.partners.clp.mrtdocumentbridge.util.DBUtil;
+import axa.partners.clp.mrtdocumentbridge.exception.StatusFileNotOwnedException;
+import axa.partners.clp.mrtdocumentbridge.util.AmqpHeaderCodec;
+import axa.partners.clp.mrtdocumentbridge.util.PayloadCompression;
+import axa.partners.clp.mrtdocumentbridge.util.TracingPolicy;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.StatusCode;
@@ -19,14 +30,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.*;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -36,23 +65,123 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ClientService {
     private static final Logger logger = LoggerFactory.getLogger(ClientService.class);
 
+    /**
+     * Status history record and the latest request status are written by a single statement. The request status only
+     * moves forward, so statuses received out of order are kept in the history only.
+     */
+    static final String INSERT_REQUEST_STATUS = """
+            WITH inserted AS (
+                INSERT INTO request_status_history (id, status_generated_at, created_at, request_id, status, message)
+                VALUES (?, ?, ?, ?, ?, ?)
+                RETURNING request_id, status, status_generated_at
+            )
+            UPDATE CLIENT_REQUEST r
+            SET status = i.status, status_generated_at = i.status_generated_at
+            FROM inserted i
+            WHERE r.id = i.request_id
+            AND (r.status_generated_at IS NULL OR r.status_generated_at < i.status_generated_at)
+        """;
+
+    private static final String UPDATE_CMX_DOCUMENT_ID = """
+            UPDATE client_request set cmx_document_id=?, cmx_document_created_at = ?, cmx_document_sha256 = ? WHERE id = ?::uuid
+        """;
+
     private final DataSource dataSource;
 
     private final Tracer tracer;
 
     private final AtomicInteger failedPrintedFiles;
 
+    private final MeterRegistry registry;
+
+    private final int bulkInsertThreshold;
+
+    private final ClientConfigurationCache clientConfigurationCache;
+
+    private final ObjectMapper objectMapper;
+
+    private final Map<Long, CachedRoutingDetails> routingDetailsCache;
+
+    private final Duration routingDetailsCacheTtl;
+
+    private final int routingDetailsCacheMaxEntries;
+
+    private final Duration printedFileLease;
+
+    private final Duration printedFileRetryDelay;
+
+    private final String instanceId;
+
+    private final TracingPolicy tracingPolicy;
+
+    private record CachedRoutingDetails(ClientRequestAndRoutingDetails details, Instant expiresAt) {
+    }
+
+    private final ThreadLocal<Connection> unitOfWorkConnection = new ThreadLocal<>();
+
+    /**
+     * Status records and CMX document ids written in the active unit of work, flushed as JDBC batches before commit
+     */
+    private final ThreadLocal<StatusWriteBatch> unitOfWorkStatusWrites = new ThreadLocal<>();
+
+    private final boolean groupStatusWrites;
+
+    private final DistributionSummary statusBatchSizes;
+
     /**
      * Constructs a new ClientService object.
      *
      * @param dataSource the data source used for database operations
+     * @param clientConfigurationCache cache of the client configuration table
+     * @param objectMapper object mapper
+     * @param bulkInsertThreshold number of documents from which client requests are inserted with a single array based statement
+     * @param routingDetailsCacheTtl time the resolved file Id routing details are kept in memory
+     * @param routingDetailsCacheMaxEntries maximum number of file Id routing details kept in memory
+     * @param printedFileLease time a printed status file is leased to this instance while its documents are processed
+     * @param printedFileRetryDelay minimum time between two attempts to process a printed status file
+     * @param hostname host name, used to identify the instance holding a lease
+     * @param tracingPolicy bounds the size of the span attributes
+     * @param groupStatusWrites true to write the status records and CMX document ids of a unit of work as batches
+     * flushed before its commit
      */
     @Autowired
     public ClientService(DataSource dataSource,
+                         ClientConfigurationCache clientConfigurationCache,
                          MeterRegistry registry,
                          OpenTelemetry openTelemetry,
-                         String version) {
+                         String version,
+                         ObjectMapper objectMapper,
+                         @Value("${client_request.bulk_insert_threshold:500}") int bulkInsertThreshold,
+                         @Value("${client_request.routing_cache.ttl:PT5M}") Duration routingDetailsCacheTtl,
+                         @Value("${client_request.routing_cache.max_entries:10000}") int routingDetailsCacheMaxEntries,
+                         @Value("${printed_document.lease:PT10M}") Duration printedFileLease,
+                         @Value("${printed_document.retry_delay:PT30S}") Duration printedFileRetryDelay,
+                         @Value("${HOSTNAME:}") String hostname,
+                         TracingPolicy tracingPolicy,
+                         @Value("${status_writer.group_commit.enabled:false}") boolean groupStatusWrites) {
         this.dataSource = dataSource;
+        this.clientConfigurationCache = clientConfigurationCache;
+        this.objectMapper = objectMapper;
+        this.registry = registry;
+        this.bulkInsertThreshold = bulkInsertThreshold;
+        // Least recently used entries are evicted once the maximum number of entries is reached
+        this.routingDetailsCache = Collections.synchronizedMap(new LinkedHashMap<Long, CachedRoutingDetails>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedRoutingDetails> eldest) {
+                return this.size() > routingDetailsCacheMaxEntries;
+            }
+        });
+        this.routingDetailsCacheTtl = routingDetailsCacheTtl;
+        this.routingDetailsCacheMaxEntries = routingDetailsCacheMaxEntries;
+        this.printedFileLease = printedFileLease;
+        this.printedFileRetryDelay = printedFileRetryDelay;
+        // Unique per process, so that two instances on the same host do not share leases
+        this.instanceId = (hostname.isBlank() ? "mrt-document-bridge" : hostname) + "/" + UUID.randomUUID();
+        this.tracingPolicy = tracingPolicy;
+        this.groupStatusWrites = groupStatusWrites;
+        this.statusBatchSizes = DistributionSummary.builder("status_writer.batch_size")
+                .description("Number of status records and CMX document ids written in one batch by a unit of work")
+                .register(registry);
         this.failedPrintedFiles = new AtomicInteger(0);
         Gauge.builder("printed_document.failures", () -> this.failedPrintedFiles)
                 .description("Number of failed printed documents")
@@ -60,6 +189,106 @@ public class ClientService {
         this.tracer = openTelemetry.getTracer(ClientService.class.getName(), version);
     }
 
+    /**
+     * Executes the work in a unit of work. All the calls of this service made from within the work on the current
+     * thread use the same connection and transaction. The transaction is committed when the work completes and rolled
+     * back if the work throws. Nested calls join the unit of work that is already active.
+     * <p>
+     * When status writes are grouped, the status records and CMX document ids written by the work are queued and sent
+     * as JDBC batches, one round trip per statement, right before the commit.
+     *
+     * @param work the work to execute
+     * @return result of the work
+     * @throws ServiceException if the work fails or the transaction cannot be committed
+     */
+    public <T> T inUnitOfWork(UnitOfWork<T> work) throws ServiceException {
+        if (this.unitOfWorkConnection.get() != null) {
+            return work.execute();
+        }
+
+        Span span = this.tracer
+                .spanBuilder("unitOfWork")
+                .startSpan();
+
+        try (Scope scope = span.makeCurrent(); Connection conn = this.dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            this.unitOfWorkConnection.set(conn);
+            StatusWriteBatch statusWrites = this.groupStatusWrites ? new StatusWriteBatch() : null;
+            this.unitOfWorkStatusWrites.set(statusWrites);
+            boolean committed = false;
+            try {
+                T result = work.execute();
+                if (statusWrites != null && !statusWrites.isEmpty()) {
+                    span.setAttribute("status_writes", statusWrites.size());
+                    this.statusBatchSizes.record(statusWrites.size());
+                    statusWrites.flush(conn);
+                }
+                conn.commit();
+                committed = true;
+                span.setStatus(StatusCode.OK);
+                return result;
+            } finally {
+                this.unitOfWorkConnection.remove();
+                this.unitOfWorkStatusWrites.remove();
+                if (!committed) {
+                    span.setStatus(StatusCode.ERROR);
+                    try {
+                        conn.rollback();
+                    } catch (SQLException e) {
+                        logger.error("Cannot roll back unit of work: {}", e.getMessage());
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            span.setStatus(StatusCode.ERROR);
+            span.recordException(e);
+            logger.error("Cannot complete unit of work: {}", e.getMessage());
+            throw new ServiceException(String.format("Cannot complete unit of work: %s", e.getMessage()));
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * @return true if a unit of work is active on the current thread
+     */
+    public boolean isUnitOfWorkActive() {
+        return this.unitOfWorkConnection.get() != null;
+    }
+
+    /**
+     * Returns the connection of the active unit of work or a new pooled connection. The unit of work connection is
+     * wrapped so that closing it or managing its transaction from within a service method has no effect.
+     */
+    private Connection connection() throws SQLException {
+        Connection conn = this.unitOfWorkConnection.get();
+        if (conn == null) {
+            return this.dataSource.getConnection();
+        }
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close", "commit", "setAutoCommit":
+                            return null;
+                        case "rollback":
+                            if (args == null || args.length == 0) {
+                                return null;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
     /**
      * Retrieves the list of enabled clients from the database.
      *
@@ -73,7 +302,20 @@ public class ClientService {
                 .startSpan();
 
         try(Scope scope = span.makeCurrent()) {
-            try (Connection conn = this.dataSource.getConnection()) {
+            Map<String, ClientConfigurationCache.Entry> cached = this.clientConfigurationCache.entries();
+            if (cached != null) {
+                span.setAttribute("cache", "hit");
+                for (ClientConfigurationCache.Entry entry : cached.values()) {
+                    if (entry.enabled()) {
+                        result.add(toClientConfiguration(entry));
+                    }
+                }
+                span.setStatus(StatusCode.OK);
+                return result;
+            }
+
+            span.setAttribute("cache", "miss");
+            try (Connection conn = this.connection()) {
                 try (Statement st = conn.createStatement()) {
                     try (ResultSet rs = st.executeQuery(
                             """
@@ -119,7 +361,39 @@ public class ClientService {
 
         try (Scope scope = span.makeCurrent()) {
             span.setAttribute("file_id", fileId);
-            try (Connection conn = this.dataSource.getConnection()) {
+            boolean cacheAvailable = this.clientConfigurationCache.isAvailable();
+            if (!cacheAvailable) {
+                span.setAttribute("cache", "miss");
+            }
+            try (Connection conn = this.connection()) {
+                if (cacheAvailable) {
+                    try (PreparedStatement st = conn.prepareStatement("""
+                        SELECT id, client_id FROM CLIENT_REQUEST WHERE file_id = ?
+                    """)) {
+                        st.setLong(1, fileId);
+                        try (ResultSet rs = st.executeQuery()) {
+                            if (!rs.next()) {
+                                span.setStatus(StatusCode.OK);
+                                return null;
+                            }
+                            ClientConfigurationCache.Entry entry = this.clientConfigurationCache.lookup(rs.getString(2)).entry();
+                            span.setAttribute("cache", entry != null ? "hit" : "miss");
+                            if (entry != null) {
+                                ClientRequestAndRoutingDetails details = new ClientRequestAndRoutingDetails(
+                                        rs.getString(1),
+                                        rs.getString(2),
+                                        entry.responseExchange(),
+                                        entry.responseRoutingKey());
+                                span.setAttribute("request_id", details.requestId());
+                                span.setAttribute("response_exchange", details.responseExchange());
+                                span.setAttribute("response_routing_key", details.responseRoutingKey());
+                                return details;
+                            }
+                            // Client has been added after the snapshot was taken, it is picked up by the next reload
+                        }
+                    }
+                }
+
                 try (PreparedStatement st = conn.prepareStatement("""
                     SELECT r.id, r.client_id, c.response_exchange, c.response_routing_key
                     FROM CLIENT_REQUEST r inner join CLIENT_CONFIGURATION c
@@ -155,6 +429,132 @@ public class ClientService {
         return null;
     }
 
+    /**
+     * Retrieves the request Ids and routing details associated with the given file Ids using a single query.
+     * Resolved details are kept in a short-lived near-cache, so the status files that are retried (e.g. printed
+     * documents waiting for the PDF files) do not query the same file Ids again. The near-cache is bounded, the least
+     * recently used file Ids are evicted first. The routing details are taken from the client configuration cache when
+     * it is available, the client configuration table is only joined for the clients missing from the snapshot.
+     *
+     * @param fileIds the file Ids for which the request Ids are to be retrieved
+     * @return request Ids and routing details keyed by file Id. File Ids without a request are not present in the map
+     * @throws ServiceException if an error occurs while retrieving the request Ids, or if a file Id matches several
+     * client requests
+     */
+    public Map<Long, ClientRequestAndRoutingDetails> getRequestIdAndRoutingDetails(Collection<Long> fileIds) throws ServiceException {
+        Map<Long, ClientRequestAndRoutingDetails> result = new HashMap<>();
+        Span span = this.tracer
+                .spanBuilder("getRequestIds")
+                .startSpan();
+
+        try (Scope scope = span.makeCurrent()) {
+            span.setAttribute("file_ids", fileIds.size());
+            Instant now = Instant.now();
+            List<Long> unresolved = new ArrayList<>();
+            for (Long fileId : new LinkedHashSet<>(fileIds)) {
+                CachedRoutingDetails cached = this.routingDetailsCache.get(fileId);
+                if (cached != null && cached.expiresAt().isAfter(now)) {
+                    result.put(fileId, cached.details());
+                } else {
+                    if (cached != null) {
+                        this.routingDetailsCache.remove(fileId);
+                    }
+                    unresolved.add(fileId);
+                }
+            }
+            span.setAttribute("near_cache_hits", result.size());
+
+            if (!unresolved.isEmpty()) {
+                Set<Long> duplicates = new TreeSet<>();
+                try (Connection conn = this.connection()) {
+                    List<Long> uncached = unresolved;
+                    if (this.clientConfigurationCache.isAvailable()) {
+                        span.setAttribute("cache", "hit");
+                        uncached = new ArrayList<>();
+                        try (PreparedStatement st = conn.prepareStatement("""
+                            SELECT file_id, id, client_id FROM CLIENT_REQUEST WHERE file_id = ANY(?)
+                        """)) {
+                            st.setArray(1, conn.createArrayOf("bigint", unresolved.toArray(new Long[0])));
+                            try (ResultSet rs = st.executeQuery()) {
+                                while (rs.next()) {
+                                    long fileId = rs.getLong(1);
+                                    ClientConfigurationCache.Entry entry = this.clientConfigurationCache.lookup(rs.getString(3)).entry();
+                                    if (entry == null) {
+                                        // Client has been added after the snapshot was taken, it is picked up by the next reload
+                                        uncached.add(fileId);
+                                        continue;
+                                    }
+                                    ClientRequestAndRoutingDetails details = new ClientRequestAndRoutingDetails(
+                                            rs.getString(2),
+                                            rs.getString(3),
+                                            entry.responseExchange(),
+                                            entry.responseRoutingKey());
+                                    if (result.putIfAbsent(fileId, details) != null) {
+                                        duplicates.add(fileId);
+                                    }
+                                }
+                            }
+                        }
+                    } else {
+                        span.setAttribute("cache", "miss");
+                    }
+
+                    if (!uncached.isEmpty()) {
+                        try (PreparedStatement st = conn.prepareStatement("""
+                            SELECT r.file_id, r.id, r.client_id, c.response_exchange, c.response_routing_key
+                            FROM CLIENT_REQUEST r inner join CLIENT_CONFIGURATION c
+                            ON r.client_id = c.client_id
+                            WHERE file_id = ANY(?)
+                        """)) {
+                            st.setArray(1, conn.createArrayOf("bigint", uncached.toArray(new Long[0])));
+                            try (ResultSet rs = st.executeQuery()) {
+                                while (rs.next()) {
+                                    ClientRequestAndRoutingDetails details = new ClientRequestAndRoutingDetails(
+                                            rs.getString(2),
+                                            rs.getString(3),
+                                            rs.getString(4),
+                                            rs.getString(5));
+                                    if (result.putIfAbsent(rs.getLong(1), details) != null) {
+                                        duplicates.add(rs.getLong(1));
+                                    }
+                                }
+                            }
+                        }
+                    }
+                } catch (SQLException e) {
+                    span.setStatus(StatusCode.ERROR);
+                    span.recordException(e);
+                    logger.error("Cannot retrieve request Ids for {} file Id(s): {}", unresolved.size(), e.getMessage());
+                    throw new ServiceException(String.format("Cannot retrieve request Ids for %d file Id(s): %s", unresolved.size(), e.getMessage()));
+                }
+
+                if (!duplicates.isEmpty()) {
+                    span.setStatus(StatusCode.ERROR);
+                    logger.error("File Id(s) {} match several client requests", duplicates);
+                    throw new ServiceException(String.format("File Id(s) %s match several client requests", duplicates));
+                }
+
+                this.cacheRoutingDetails(unresolved, result, now);
+            }
+            span.setAttribute("resolved", result.size());
+            span.setStatus(StatusCode.OK);
+        } finally {
+            span.end();
+        }
+
+        return result;
+    }
+
+    private void cacheRoutingDetails(List<Long> fileIds, Map<Long, ClientRequestAndRoutingDetails> resolved, Instant now) {
+        Instant expiresAt = now.plus(this.routingDetailsCacheTtl);
+        for (Long fileId : fileIds) {
+            ClientRequestAndRoutingDetails details = resolved.get(fileId);
+            if (details != null) {
+                this.routingDetailsCache.put(fileId, new CachedRoutingDetails(details, expiresAt));
+            }
+        }
+    }
+
     /**
      * Adds a request status record to the request_status_history table.
      *
@@ -164,7 +564,6 @@ public class ClientService {
      */
     public String addRequestStatus(Response response) throws ServiceException {
         String requestId = UUID.randomUUID().toString();
-        LocalDateTime lastStatusUpdateDateTime = null;
 
         Span span = this.tracer
                 .spanBuilder("addRequestStatus")
@@ -174,44 +573,17 @@ public class ClientService {
             span.setAttribute("request_id", response.getRequestId());
             span.setAttribute("status", response.getStatusCode());
 
-            try (Connection conn = this.dataSource.getConnection()) {
-                DBUtil.setAutoCommit(conn, false);
-
-                try (PreparedStatement getLatestStatusHistoryItemStatement = conn.prepareStatement("""
-                        SELECT status_generated_at from request_status_history WHERE request_id = ?::uuid ORDER BY status_generated_at desc LIMIT 1
-                    """)) {
-                    getLatestStatusHistoryItemStatement.setString(1, response.getRequestId());
-                    try (ResultSet getLatestStatusHistoryItemResultSet = getLatestStatusHistoryItemStatement.executeQuery()) {
-                        if (getLatestStatusHistoryItemResultSet.next()) {
-                            lastStatusUpdateDateTime = getLatestStatusHistoryItemResultSet.getTimestamp(1).toLocalDateTime();
-                        }
-                    }
-                }
+            StatusWriteBatch statusWrites = this.unitOfWorkStatusWrites.get();
+            if (statusWrites != null) {
+                // Written with the other status records of the unit of work before it commits
+                statusWrites.statuses().add(new PendingStatus(requestId, response));
+                span.setAttribute("batched", true);
+                span.setStatus(StatusCode.OK);
+                return requestId;
+            }
 
-                try (PreparedStatement insertRequestStatusHistoryStatement = conn.prepareStatement("""
-                            INSERT INTO request_status_history (id, status_generated_at, created_at, request_id, status, message)
-                            VALUES (?, ?, ?, ?, ?, ?)
-                        """)) {
-                    insertRequestStatusHistoryStatement.setObject(1, requestId, Types.OTHER);
-                    insertRequestStatusHistoryStatement.setTimestamp(2, Timestamp.valueOf(response.getStatusCreatedAt()));
-                    insertRequestStatusHistoryStatement.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
-                    insertRequestStatusHistoryStatement.setObject(4, response.getRequestId(), Types.OTHER);
-                    insertRequestStatusHistoryStatement.setString(5, response.getStatusCode());
-                    insertRequestStatusHistoryStatement.setString(6, response.getMessage());
-                    insertRequestStatusHistoryStatement.executeUpdate();
-
-                    if (lastStatusUpdateDateTime == null || lastStatusUpdateDateTime.isBefore(response.getStatusCreatedAt())) {
-                        try (PreparedStatement updateRequestStatusStatement = conn.prepareStatement("""
-                                    UPDATE CLIENT_REQUEST set status = ? WHERE ID = ?::uuid
-                                """)) {
-                            updateRequestStatusStatement.setString(1, response.getStatusCode());
-                            updateRequestStatusStatement.setString(2, response.getRequestId());
-                            updateRequestStatusStatement.executeUpdate();
-                            logger.debug("Updated request '" + requestId + "' with status '" + response.getStatusCode() + "'");
-                        }
-                    }
-                }
-                DBUtil.commit(conn);
+            try (Connection conn = this.connection()) {
+                this.insertRequestStatus(conn, requestId, response);
                 span.setStatus(StatusCode.OK);
             } catch (SQLException e) {
                 span.setStatus(StatusCode.ERROR);
@@ -226,6 +598,32 @@ public class ClientService {
         return requestId;
     }
 
+    /**
+     * Adds a request status record on the given connection. The transaction is managed by the caller.
+     *
+     * @param conn database connection
+     * @param statusId the ID of the new request status record
+     * @param response The response object containing the request ID, status code, and message
+     * @throws SQLException if the record cannot be created
+     */
+    void insertRequestStatus(Connection conn, String statusId, Response response) throws SQLException {
+        try (PreparedStatement st = conn.prepareStatement(INSERT_REQUEST_STATUS)) {
+            bindRequestStatus(st, statusId, response);
+            if (st.executeUpdate() > 0) {
+                logger.debug("Updated request '" + response.getRequestId() + "' with status '" + response.getStatusCode() + "'");
+            }
+        }
+    }
+
+    private static void bindRequestStatus(PreparedStatement st, String statusId, Response response) throws SQLException {
+        st.setObject(1, statusId, Types.OTHER);
+        st.setTimestamp(2, Timestamp.valueOf(response.getStatusCreatedAt()));
+        st.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+        st.setObject(4, response.getRequestId(), Types.OTHER);
+        st.setString(5, response.getStatusCode());
+        st.setString(6, response.getMessage());
+    }
+
     /**
      * Checks if a client request exists. Client request comprises of the batch Id optional and set of requests Ids.
      * The rule for validation here is that neither of the Ids must exist in the database. If any of them found the request
@@ -236,9 +634,18 @@ public class ClientService {
      * @throws ServiceException if an error occurs while checking the client request's existence
      */
     public boolean checkIfClientRequestExists(Request request) throws ServiceException {
-        PreparedStatement stValidateRequest = null;
-        ResultSet rsValidateRequest = null;
+        return !this.findExistingClientRequests(request).isEmpty();
+    }
 
+    /**
+     * Finds the parts of a client request that are already registered. The batch Id and all the request Ids are
+     * probed with a single query.
+     *
+     * @param request the document creation request
+     * @return the batch flag and the set of request Ids that already exist in the database
+     * @throws ServiceException if an error occurs while checking the client request's existence
+     */
+    public ExistingClientRequests findExistingClientRequests(Request request) throws ServiceException {
         Span span = this.tracer
                 .spanBuilder("checkIfClientRequestExists")
                 .startSpan();
@@ -253,35 +660,38 @@ public class ClientService {
                 throw new ServiceException("Expect request with a single document in the 'Interactive' mode");
             }
 
-            try (Connection conn = this.dataSource.getConnection()) {
+            String[] requestIds = new String[request.getDocuments().size()];
+            int index = 0;
+            for (Document document : request.getDocuments()) {
+                requestIds[index++] = document.getRequestId();
+            }
+            this.tracingPolicy.setCollection(span, "request_id", request.getDocuments(), Document::getRequestId);
+
+            boolean batchExists = false;
+            Set<String> existingRequestIds = new HashSet<>();
+            try (Connection conn = this.connection()) {
                 if (request.getBatchId() != null) {
                     span.setAttribute("batch_id", request.getBatchId());
-                    try (PreparedStatement st = conn.prepareStatement("""
-                        SELECT ID FROM CLIENT_REQUEST_BATCH WHERE ID = ?::uuid
-                    """)) {
+                }
+                try (PreparedStatement st = conn.prepareStatement("""
+                            SELECT true, id::text FROM CLIENT_REQUEST_BATCH WHERE ID = ?::uuid
+                            UNION ALL
+                            SELECT false, id::text FROM client_request WHERE id = ANY(?::uuid[])
+                        """)) {
+                    if (request.getBatchId() != null) {
                         st.setString(1, request.getBatchId());
-                        try (ResultSet rs = st.executeQuery()) {
-                            if (rs.next()) {
-                                logger.debug(String.format("Batch '%s' already exists.", request.getBatchId()));
-                                span.setStatus(StatusCode.OK);
-                                return true;
-                            }
-                        }
+                    } else {
+                        st.setNull(1, Types.OTHER);
                     }
-                }
-
-                int index = 0;
-                for (Document document : request.getDocuments()) {
-                    span.setAttribute("request_id_" + index++, document.getRequestId());
-                    try (PreparedStatement st = conn.prepareStatement("""
-                                SELECT id FROM client_request WHERE id = ?::uuid
-                            """)) {
-                        st.setString(1, document.getRequestId());
-                        try (ResultSet rs = st.executeQuery()) {
-                            if (rs.next()) {
-                                logger.debug(String.format("Request '%s' already exists.", document.getRequestId()));
-                                span.setStatus(StatusCode.OK);
-                                return true;
+                    st.setArray(2, conn.createArrayOf("varchar", requestIds));
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            if (rs.getBoolean(1)) {
+                                logger.debug(String.format("Batch '%s' already exists.", request.getBatchId()));
+                                batchExists = true;
+                            } else {
+                                logger.debug(String.format("Request '%s' already exists.", rs.getString(2)));
+                                existingRequestIds.add(rs.getString(2));
                             }
                         }
                     }
@@ -297,12 +707,87 @@ public class ClientService {
                     throw new ServiceException(String.format("Cannot validate if request '%s' does already exist: %s", request.getDocuments().getFirst().getRequestId(), e.getMessage()));
                 }
             }
+            span.setAttribute("batch_exists", batchExists);
+            span.setAttribute("duplicates", existingRequestIds.size());
             span.setStatus(StatusCode.OK);
+            return new ExistingClientRequests(batchExists, existingRequestIds);
         } finally {
             span.end();
         }
+    }
 
-        return false;
+    /**
+     * This method checks the existence of the batches and requests of several client requests with a single query.
+     *
+     * @param requests client requests
+     * @return existing batch and request Ids for each client request, keyed by request identity
+     * @throws ServiceException if any of the requests is invalid or the query fails
+     */
+    public Map<Request, ExistingClientRequests> findExistingClientRequests(List<Request> requests) throws ServiceException {
+        Span span = this.tracer
+                .spanBuilder("checkIfClientRequestsExist")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("count", requests.size());
+            List<String> batchIds = new ArrayList<>();
+            List<String> requestIds = new ArrayList<>();
+            for (Request request : requests) {
+                if (request.getDocuments() == null || request.getDocuments().isEmpty()) {
+                    throw new ServiceException("Empty request");
+                }
+                if (request.getBatchId() == null && request.getDocuments().size() > 1) {
+                    throw new ServiceException("Expect request with a single document in the 'Interactive' mode");
+                }
+                if (request.getBatchId() != null) {
+                    batchIds.add(request.getBatchId());
+                }
+                for (Document document : request.getDocuments()) {
+                    requestIds.add(document.getRequestId());
+                }
+            }
+
+            Set<String> existingBatchIds = new HashSet<>();
+            Set<String> existingRequestIds = new HashSet<>();
+            try (Connection conn = this.connection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                            SELECT true, id::text FROM CLIENT_REQUEST_BATCH WHERE ID = ANY(?::uuid[])
+                            UNION ALL
+                            SELECT false, id::text FROM client_request WHERE id = ANY(?::uuid[])
+                        """)) {
+                    st.setArray(1, conn.createArrayOf("varchar", batchIds.toArray(new String[0])));
+                    st.setArray(2, conn.createArrayOf("varchar", requestIds.toArray(new String[0])));
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            (rs.getBoolean(1) ? existingBatchIds : existingRequestIds).add(rs.getString(2));
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot validate if {} client request(s) do already exist: {}", requests.size(), e.getMessage());
+                throw new ServiceException(String.format("Cannot validate if %d client request(s) do already exist: %s", requests.size(), e.getMessage()));
+            }
+
+            Map<Request, ExistingClientRequests> existing = new IdentityHashMap<>();
+            for (Request request : requests) {
+                Set<String> duplicates = new HashSet<>();
+                for (Document document : request.getDocuments()) {
+                    String requestId = document.getRequestId().toLowerCase(Locale.ROOT);
+                    if (existingRequestIds.contains(requestId)) {
+                        duplicates.add(requestId);
+                    }
+                }
+                boolean batchExists = request.getBatchId() != null && existingBatchIds.contains(request.getBatchId().toLowerCase(Locale.ROOT));
+                existing.put(request, new ExistingClientRequests(batchExists, duplicates));
+            }
+            span.setAttribute("duplicates", existingRequestIds.size());
+            span.setStatus(StatusCode.OK);
+            return existing;
+        } finally {
+            span.end();
+        }
     }
 
     /**
@@ -312,13 +797,26 @@ public class ClientService {
      * @throws ServiceException if any error occurs during processing
      */
     public void addClientRequest(Request request, String status) throws ServiceException {
+        this.addClientRequest(request, request.getDocuments(), status);
+    }
+
+    /**
+     * This method adds new records to a `client_request` table for a subset of the request documents. Used to accept
+     * the part of a batch that has not been registered yet.
+     *
+     * @param request client request details
+     * @param documents documents of the request to register
+     * @param status initial status
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void addClientRequest(Request request, List<Document> documents, String status) throws ServiceException {
 
         Span span = this.tracer
                 .spanBuilder("addClientRequest")
                 .startSpan();
 
         try(Scope scope = span.makeCurrent()) {
-            try (Connection conn = this.dataSource.getConnection()) {
+            try (Connection conn = this.connection()) {
                 conn.setAutoCommit(false);
                 if (request.getBatchId() != null) {
                     span.setAttribute("batch_id", request.getBatchId());
@@ -330,32 +828,20 @@ public class ClientService {
                     }
                 }
 
-                int index = 0;
-                for (Document document : request.getDocuments()) {
-                    span.setAttribute("request_id_" + index, document.getRequestId());
-                    span.setAttribute("file_id_" + index++, document.getFileId());
+                String strategy = documents.size() >= this.bulkInsertThreshold ? "array" : "batch";
+                span.setAttribute("insert_strategy", strategy);
 
-                    try (PreparedStatement st = conn.prepareStatement("""
-                            INSERT INTO client_request (id, batch_id, created_at, file_id, document_type, command, client_id, status)
-                            VALUES (?::uuid, ?::uuid, ?, ?, ?, ?, ?, ?)
-                        """)) {
-                        st.setObject(1, document.getRequestId(), Types.OTHER);
-                        if (request.getBatchId() != null) {
-                            st.setString(2, request.getBatchId());
-                        } else {
-                            st.setNull(2, Types.OTHER);
-                        }
-                        st.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
-                        st.setLong(4, document.getFileId());
-                        st.setString(5, document.getDocumentType());
-                        st.setString(6, request.getCommand());
-                        st.setString(7, request.getClientId());
-                        st.setString(8, status);
-                        st.executeUpdate();
-                        logger.debug(String.format("Created request '%s'", document.getRequestId()));
-                    }
+                this.tracingPolicy.setCollection(span, "request_id", documents, Document::getRequestId);
+                this.tracingPolicy.setCollection(span, "file_id", documents, Document::getFileId);
+
+                long started = System.nanoTime();
+                if (strategy.equals("array")) {
+                    this.insertClientRequestsWithArrays(conn, request, documents, status);
+                } else {
+                    this.insertClientRequestsInBatch(conn, request, documents, status);
                 }
                 conn.commit();
+                this.recordInsertMetrics(strategy, documents.size(), System.nanoTime() - started);
                 logger.debug("Committed addClientRequest transaction");
                 span.setStatus(StatusCode.OK);
             } catch (SQLException e) {
@@ -370,39 +856,223 @@ public class ClientService {
     }
 
     /**
-     * This method adds a new record to the `status_file_error` table.
+     * This method adds the records of several client requests to the `client_request_batch` and `client_request`
+     * tables, with one statement per table.
      *
-     * @param fileName the name of the file with error
-     * @param filePath the path of the file with error
-     * @param message the error message
+     * @param requests client requests
+     * @param status initial status
      * @throws ServiceException if any error occurs during processing
      */
-    public void addStatusFileErrorRecord(String fileName, String filePath, String message) throws ServiceException {
-        Span span = this.tracer.spanBuilder("addStatusFileErrorRecord")
+    public void addClientRequests(List<Request> requests, String status) throws ServiceException {
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        Span span = this.tracer
+                .spanBuilder("addClientRequests")
                 .startSpan();
 
         try(Scope scope = span.makeCurrent()) {
-            span.setAttribute("file_name", fileName);
-            span.setAttribute("file_path", filePath);
-            span.setAttribute("message", message);
-            try (Connection conn = this.dataSource.getConnection()) {
-                try (PreparedStatement st = conn.prepareStatement("""
-                    INSERT INTO status_file_error (id, created_at, file_name, file_path, message)
-                    VALUES (?, ?, ?, ?, ?)
-                """)) {
-                    st.setObject(1, UUID.randomUUID().toString(), Types.OTHER);
-                    st.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
-                    st.setString(3, fileName);
-                    st.setString(4, filePath);
-                    st.setString(5, message);
-                    st.executeUpdate();
-                    span.setStatus(StatusCode.OK);
+            span.setAttribute("count", requests.size());
+            span.setAttribute("insert_strategy", "bulk");
+
+            List<String> batchIds = new ArrayList<>();
+            List<String> ids = new ArrayList<>();
+            List<String> requestBatchIds = new ArrayList<>();
+            List<Long> fileIds = new ArrayList<>();
+            List<String> documentTypes = new ArrayList<>();
+            List<String> commands = new ArrayList<>();
+            List<String> clientIds = new ArrayList<>();
+            for (Request request : requests) {
+                if (request.getBatchId() != null) {
+                    batchIds.add(request.getBatchId());
                 }
-            } catch (SQLException e) {
-                span.recordException(e);
-                span.setStatus(StatusCode.ERROR);
-                logger.error("Cannot create status file error record for the file '{}': {}", fileName, e.getMessage());
-                throw new ServiceException(String.format("Cannot create status file error record for the file '%s': %s", fileName, e.getMessage()));
+                for (Document document : request.getDocuments()) {
+                    ids.add(document.getRequestId());
+                    requestBatchIds.add(request.getBatchId());
+                    fileIds.add(document.getFileId());
+                    documentTypes.add(document.getDocumentType());
+                    commands.add(request.getCommand());
+                    clientIds.add(request.getClientId());
+                }
+            }
+
+            try (Connection conn = this.connection()) {
+                conn.setAutoCommit(false);
+                long started = System.nanoTime();
+                Timestamp createdAt = Timestamp.valueOf(LocalDateTime.now());
+                if (!batchIds.isEmpty()) {
+                    try (PreparedStatement st = conn.prepareStatement("""
+                            INSERT INTO CLIENT_REQUEST_BATCH (ID, CREATED_AT) SELECT b, ? FROM unnest(?::uuid[]) AS b
+                        """)) {
+                        st.setTimestamp(1, createdAt);
+                        st.setArray(2, conn.createArrayOf("varchar", batchIds.toArray(new String[0])));
+                        st.executeUpdate();
+                    }
+                }
+
+                try (PreparedStatement st = conn.prepareStatement("""
+                        INSERT INTO client_request (id, batch_id, created_at, file_id, document_type, command, client_id, status)
+                        SELECT d.id, d.batch_id, ?, d.file_id, d.document_type, d.command, d.client_id, ?
+                        FROM unnest(?::uuid[], ?::uuid[], ?::bigint[], ?::text[], ?::text[], ?::text[])
+                            AS d(id, batch_id, file_id, document_type, command, client_id)
+                    """)) {
+                    st.setTimestamp(1, createdAt);
+                    st.setString(2, status);
+                    st.setArray(3, conn.createArrayOf("varchar", ids.toArray(new String[0])));
+                    st.setArray(4, conn.createArrayOf("varchar", requestBatchIds.toArray(new String[0])));
+                    st.setArray(5, conn.createArrayOf("bigint", fileIds.toArray(new Long[0])));
+                    st.setArray(6, conn.createArrayOf("varchar", documentTypes.toArray(new String[0])));
+                    st.setArray(7, conn.createArrayOf("varchar", commands.toArray(new String[0])));
+                    st.setArray(8, conn.createArrayOf("varchar", clientIds.toArray(new String[0])));
+                    int created = st.executeUpdate();
+                    logger.debug(String.format("Created %d request(s) of %d client request(s) in bulk mode", created, requests.size()));
+                }
+                conn.commit();
+                this.recordInsertMetrics("bulk", ids.size(), System.nanoTime() - started);
+                span.setStatus(StatusCode.OK);
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot create request records: {}", e.getMessage());
+                throw new ServiceException(String.format("Cannot create request records: %s", e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Inserts client request records using a single prepared statement and JDBC batching.
+     *
+     * @param conn connection with an open transaction
+     * @param request client request details
+     * @param documents documents to register
+     * @param status initial status
+     * @throws SQLException if the batch cannot be executed
+     */
+    private void insertClientRequestsInBatch(Connection conn, Request request, List<Document> documents, String status) throws SQLException {
+        Timestamp createdAt = Timestamp.valueOf(LocalDateTime.now());
+        try (PreparedStatement st = conn.prepareStatement("""
+                INSERT INTO client_request (id, batch_id, created_at, file_id, document_type, command, client_id, status)
+                VALUES (?::uuid, ?::uuid, ?, ?, ?, ?, ?, ?)
+            """)) {
+            for (Document document : documents) {
+                st.setObject(1, document.getRequestId(), Types.OTHER);
+                if (request.getBatchId() != null) {
+                    st.setString(2, request.getBatchId());
+                } else {
+                    st.setNull(2, Types.OTHER);
+                }
+                st.setTimestamp(3, createdAt);
+                st.setLong(4, document.getFileId());
+                st.setString(5, document.getDocumentType());
+                st.setString(6, request.getCommand());
+                st.setString(7, request.getClientId());
+                st.setString(8, status);
+                st.addBatch();
+            }
+            st.executeBatch();
+            logger.debug(String.format("Created %d request(s) in batch mode", documents.size()));
+        }
+    }
+
+    /**
+     * Inserts client request records with a single statement that unnests array parameters on the server side.
+     * Used for large batches where even a JDBC batch would mean a noticeable amount of protocol traffic.
+     *
+     * @param conn connection with an open transaction
+     * @param request client request details
+     * @param documents documents to register
+     * @param status initial status
+     * @throws SQLException if the statement cannot be executed
+     */
+    private void insertClientRequestsWithArrays(Connection conn, Request request, List<Document> documents, String status) throws SQLException {
+        String[] ids = new String[documents.size()];
+        Long[] fileIds = new Long[documents.size()];
+        String[] documentTypes = new String[documents.size()];
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            ids[i] = document.getRequestId();
+            fileIds[i] = document.getFileId();
+            documentTypes[i] = document.getDocumentType();
+        }
+
+        try (PreparedStatement st = conn.prepareStatement("""
+                INSERT INTO client_request (id, batch_id, created_at, file_id, document_type, command, client_id, status)
+                SELECT d.id, ?::uuid, ?, d.file_id, d.document_type, ?, ?, ?
+                FROM unnest(?::uuid[], ?::bigint[], ?::text[]) AS d(id, file_id, document_type)
+            """)) {
+            if (request.getBatchId() != null) {
+                st.setString(1, request.getBatchId());
+            } else {
+                st.setNull(1, Types.OTHER);
+            }
+            st.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
+            st.setString(3, request.getCommand());
+            st.setString(4, request.getClientId());
+            st.setString(5, status);
+            st.setArray(6, conn.createArrayOf("varchar", ids));
+            st.setArray(7, conn.createArrayOf("bigint", fileIds));
+            st.setArray(8, conn.createArrayOf("varchar", documentTypes));
+            int created = st.executeUpdate();
+            logger.debug(String.format("Created %d request(s) in array mode", created));
+        }
+    }
+
+    private void recordInsertMetrics(String strategy, int rows, long elapsedNanos) {
+        Timer.builder("client_request.insert_time")
+                .description("Time spent inserting client request records")
+                .tag("strategy", strategy)
+                .register(this.registry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+        Counter.builder("client_request.inserted_rows")
+                .description("Number of inserted client request records")
+                .tag("strategy", strategy)
+                .register(this.registry)
+                .increment(rows);
+        DistributionSummary.builder("client_request.insert_rate")
+                .description("Client request insert throughput")
+                .baseUnit("rows/s")
+                .tag("strategy", strategy)
+                .register(this.registry)
+                .record(rows * 1_000_000_000d / Math.max(elapsedNanos, 1));
+    }
+
+    /**
+     * This method adds a new record to the `status_file_error` table.
+     *
+     * @param fileName the name of the file with error
+     * @param filePath the path of the file with error
+     * @param message the error message
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void addStatusFileErrorRecord(String fileName, String filePath, String message) throws ServiceException {
+        Span span = this.tracer.spanBuilder("addStatusFileErrorRecord")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("file_name", fileName);
+            span.setAttribute("file_path", filePath);
+            this.tracingPolicy.setAttribute(span, "message", message);
+            try (Connection conn = this.connection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO status_file_error (id, created_at, file_name, file_path, message)
+                    VALUES (?, ?, ?, ?, ?)
+                """)) {
+                    st.setObject(1, UUID.randomUUID().toString(), Types.OTHER);
+                    st.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
+                    st.setString(3, fileName);
+                    st.setString(4, filePath);
+                    st.setString(5, message);
+                    st.executeUpdate();
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException e) {
+                span.recordException(e);
+                span.setStatus(StatusCode.ERROR);
+                logger.error("Cannot create status file error record for the file '{}': {}", fileName, e.getMessage());
+                throw new ServiceException(String.format("Cannot create status file error record for the file '%s': %s", fileName, e.getMessage()));
             }
         } finally {
             span.end();
@@ -425,20 +1095,52 @@ public class ClientService {
         span.setAttribute("status_id", id);
         span.setAttribute("path", path);
         try(Scope scope = span.makeCurrent()) {
-            try (Connection conn = this.dataSource.getConnection()) {
+            try (Connection conn = this.connection()) {
+                this.updateRequestStatusFilePath(conn, id, path);
+                span.setStatus(StatusCode.OK);
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot store the status file path for the status Id - '{}': {}", id, e.getMessage());
+                throw new ServiceException(String.format("Cannot store the status file path for the status Id - '%s': %s", id, e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * This method updates the file path of the request status entries of a status file with a single statement.
+     *
+     * @param ids the ids of the request status entries
+     * @param path the new file path to be updated
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void updateRequestStatusFilePaths(Collection<String> ids, String path) throws ServiceException {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Span span = this.tracer.spanBuilder("updateRequestStatusFilePaths")
+                .startSpan();
+
+        span.setAttribute("status_ids", ids.size());
+        span.setAttribute("path", path);
+        try(Scope scope = span.makeCurrent()) {
+            try (Connection conn = this.connection()) {
                 try (PreparedStatement st = conn.prepareStatement("""
-                    UPDATE request_status_history set file_path=? WHERE id = ?::uuid
+                    UPDATE request_status_history set file_path=? WHERE id = ANY(?)
                 """)) {
                     st.setString(1, path);
-                    st.setString(2, id);
+                    st.setArray(2, conn.createArrayOf("uuid", ids.toArray(new String[0])));
                     st.executeUpdate();
                     span.setStatus(StatusCode.OK);
                 }
             } catch (SQLException e) {
                 span.setStatus(StatusCode.ERROR);
                 span.recordException(e);
-                logger.error("Cannot store the status file path for the status Id - '{}': {}", id, e.getMessage());
-                throw new ServiceException(String.format("Cannot store the status file path for the status Id - '%s': %s", id, e.getMessage()));
+                logger.error("Cannot store the status file path '{}' for {} status Id(s): {}", path, ids.size(), e.getMessage());
+                throw new ServiceException(String.format("Cannot store the status file path '%s' for %d status Id(s): %s", path, ids.size(), e.getMessage()));
             }
         } finally {
             span.end();
@@ -454,6 +1156,20 @@ public class ClientService {
      * @throws ServiceException if any error occurs during processing
      */
     public void updateCMXDocumentId(String id, String cmxDocumentId, LocalDateTime documentCreatedAt) throws ServiceException {
+        this.updateCMXDocumentId(id, cmxDocumentId, documentCreatedAt, null);
+    }
+
+    /**
+     * This method updates the CMX Document ID, CMX Document Created At timestamp and digest of the uploaded document
+     * for a specific client request in the `client_request` table.
+     *
+     * @param id the id of the client request
+     * @param cmxDocumentId the new CMX Document ID to be updated
+     * @param documentCreatedAt the new CMX Document Created At timestamp to be updated
+     * @param documentSha256 SHA-256 digest of the uploaded document, or null if unknown
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void updateCMXDocumentId(String id, String cmxDocumentId, LocalDateTime documentCreatedAt, String documentSha256) throws ServiceException {
         Span span = this.tracer
                 .spanBuilder("updateCMXDocumentId")
                 .startSpan();
@@ -462,33 +1178,176 @@ public class ClientService {
             span.setAttribute("request_id", id);
             span.setAttribute("cmx_document_id", cmxDocumentId);
 
-            try (Connection conn = this.dataSource.getConnection()) {
+            StatusWriteBatch statusWrites = this.unitOfWorkStatusWrites.get();
+            if (statusWrites != null) {
+                // Written with the other CMX document ids of the unit of work before it commits
+                statusWrites.cmxDocuments().add(new PendingCMXDocument(id, cmxDocumentId, documentCreatedAt, documentSha256));
+                span.setAttribute("batched", true);
+                span.setStatus(StatusCode.OK);
+                return;
+            }
+
+            try (Connection conn = this.connection()) {
+                this.updateCMXDocumentId(conn, id, cmxDocumentId, documentCreatedAt, documentSha256);
+                span.setStatus(StatusCode.OK);
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot store the CMX Document ID for the request Id - '{}': {}", id, e.getMessage());
+                throw new ServiceException(String.format("Cannot store the CMX Document ID for the request Id - '%s': %s", id, e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * This method retrieves the CMX documents already stored for the client requests, together with the digest of
+     * the uploaded document. Requests without a CMX document or without a digest are not returned.
+     *
+     * @param requestIds the ids of the client requests
+     * @return CMX documents by client request id
+     * @throws ServiceException if any error occurs during processing
+     */
+    public Map<String, CMXDocumentReference> findCMXDocuments(Collection<String> requestIds) throws ServiceException {
+        Map<String, CMXDocumentReference> documents = new HashMap<>();
+        if (requestIds.isEmpty()) {
+            return documents;
+        }
+
+        Span span = this.tracer
+                .spanBuilder("findCMXDocuments")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("count", requestIds.size());
+
+            try (Connection conn = this.connection()) {
                 try (PreparedStatement st = conn.prepareStatement("""
-                    UPDATE client_request set cmx_document_id=?, cmx_document_created_at = ? WHERE id = ?::uuid
+                    SELECT id::text, cmx_document_id, cmx_document_created_at, cmx_document_sha256
+                    FROM client_request
+                    WHERE id = ANY(?::uuid[]) AND cmx_document_id IS NOT NULL AND cmx_document_sha256 IS NOT NULL
                 """)) {
-                    st.setString(1, cmxDocumentId);
-                    if (documentCreatedAt != null) {
-                        st.setTimestamp(2, Timestamp.valueOf(documentCreatedAt));
-                    } else {
-                        st.setNull(2, Types.TIMESTAMP);
+                    st.setArray(1, conn.createArrayOf("varchar", requestIds.toArray(new String[0])));
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            Timestamp createdAt = rs.getTimestamp(3);
+                            documents.put(rs.getString(1), new CMXDocumentReference(
+                                    rs.getString(2),
+                                    createdAt != null ? createdAt.toLocalDateTime() : null,
+                                    rs.getString(4)));
+                        }
                     }
-                    st.setString(3, id);
-                    st.executeUpdate();
                     span.setStatus(StatusCode.OK);
                 }
             } catch (SQLException e) {
                 span.setStatus(StatusCode.ERROR);
                 span.recordException(e);
-                logger.error("Cannot store the CMX Document ID for the request Id - '{}': {}", id, e.getMessage());
-                throw new ServiceException(String.format("Cannot store the CMX Document ID for the request Id - '%s': %s", id, e.getMessage()));
+                logger.error("Cannot retrieve the CMX documents of the client requests: {}", e.getMessage());
+                throw new ServiceException(String.format("Cannot retrieve the CMX documents of the client requests: %s", e.getMessage()));
             }
         } finally {
             span.end();
         }
+
+        return documents;
+    }
+
+    /**
+     * Updates the status file path on the given connection. The transaction is managed by the caller.
+     *
+     * @param conn database connection
+     * @param id the id of the request status entry
+     * @param path the new file path to be updated
+     * @throws SQLException if the record cannot be updated
+     */
+    void updateRequestStatusFilePath(Connection conn, String id, String path) throws SQLException {
+        try (PreparedStatement st = conn.prepareStatement("""
+            UPDATE request_status_history set file_path=? WHERE id = ?::uuid
+        """)) {
+            st.setString(1, path);
+            st.setString(2, id);
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Updates the CMX Document ID on the given connection. The transaction is managed by the caller.
+     *
+     * @param conn database connection
+     * @param id the id of the client request
+     * @param cmxDocumentId the new CMX Document ID to be updated
+     * @param documentCreatedAt the new CMX Document Created At timestamp to be updated
+     * @param documentSha256 SHA-256 digest of the uploaded document, or null if unknown
+     * @throws SQLException if the record cannot be updated
+     */
+    void updateCMXDocumentId(Connection conn, String id, String cmxDocumentId, LocalDateTime documentCreatedAt, String documentSha256) throws SQLException {
+        try (PreparedStatement st = conn.prepareStatement(UPDATE_CMX_DOCUMENT_ID)) {
+            bindCMXDocumentId(st, new PendingCMXDocument(id, cmxDocumentId, documentCreatedAt, documentSha256));
+            st.executeUpdate();
+        }
+    }
+
+    private static void bindCMXDocumentId(PreparedStatement st, PendingCMXDocument document) throws SQLException {
+        st.setString(1, document.cmxDocumentId());
+        if (document.documentCreatedAt() != null) {
+            st.setTimestamp(2, Timestamp.valueOf(document.documentCreatedAt()));
+        } else {
+            st.setNull(2, Types.TIMESTAMP);
+        }
+        st.setString(3, document.documentSha256());
+        st.setString(4, document.requestId());
+    }
+
+    private record PendingStatus(String statusId, Response response) {
+    }
+
+    private record PendingCMXDocument(String requestId, String cmxDocumentId, LocalDateTime documentCreatedAt, String documentSha256) {
+    }
+
+    /**
+     * Status records and CMX document ids written in a unit of work. They are sent as two JDBC batches, in the order
+     * they were written, so a status record of a request is still applied after the previous ones.
+     */
+    private record StatusWriteBatch(List<PendingStatus> statuses, List<PendingCMXDocument> cmxDocuments) {
+        StatusWriteBatch() {
+            this(new ArrayList<>(), new ArrayList<>());
+        }
+
+        boolean isEmpty() {
+            return this.statuses.isEmpty() && this.cmxDocuments.isEmpty();
+        }
+
+        int size() {
+            return this.statuses.size() + this.cmxDocuments.size();
+        }
+
+        void flush(Connection conn) throws SQLException {
+            if (!this.statuses.isEmpty()) {
+                try (PreparedStatement st = conn.prepareStatement(INSERT_REQUEST_STATUS)) {
+                    for (PendingStatus status : this.statuses) {
+                        bindRequestStatus(st, status.statusId(), status.response());
+                        st.addBatch();
+                    }
+                    st.executeBatch();
+                }
+            }
+            if (!this.cmxDocuments.isEmpty()) {
+                try (PreparedStatement st = conn.prepareStatement(UPDATE_CMX_DOCUMENT_ID)) {
+                    for (PendingCMXDocument document : this.cmxDocuments) {
+                        bindCMXDocumentId(st, document);
+                        st.addBatch();
+                    }
+                    st.executeBatch();
+                }
+            }
+        }
     }
 
     /**
-     * This method deletes a specific request status record from the `request_status_history` table.
+     * This method deletes a specific request status record from the `request_status_history` table. The latest status
+     * of the client request is recomputed from the remaining history by the same statement, so a status received again
+     * with the same timestamp, e.g. when a status file is retried, is applied again.
      *
      * @param id the id of the request status record to delete
      * @throws ServiceException if any error occurs during processing
@@ -500,11 +1359,27 @@ public class ClientService {
 
         try(Scope scope = span.makeCurrent()) {
             span.setAttribute("request_id", id);
-            try (Connection conn = this.dataSource.getConnection()) {
+            try (Connection conn = this.connection()) {
+                // The deleted row is still visible to the lateral lookup, which runs on the statement snapshot
                 try (PreparedStatement st = conn.prepareStatement("""
-                    DELETE FROM request_status_history WHERE id = ?::uuid
+                    WITH deleted AS (
+                        DELETE FROM request_status_history WHERE id = ?::uuid
+                        RETURNING request_id
+                    )
+                    UPDATE CLIENT_REQUEST r
+                    SET status = COALESCE(l.status, r.status), status_generated_at = l.status_generated_at
+                    FROM deleted d
+                    LEFT JOIN LATERAL (
+                        SELECT h.status, h.status_generated_at
+                        FROM request_status_history h
+                        WHERE h.request_id = d.request_id AND h.id <> ?::uuid
+                        ORDER BY h.status_generated_at DESC, h.created_at DESC
+                        LIMIT 1
+                    ) l ON true
+                    WHERE r.id = d.request_id
                 """)) {
                     st.setString(1, id);
+                    st.setString(2, id);
                     st.executeUpdate();
                     span.setStatus(StatusCode.OK);
                 }
@@ -520,7 +1395,329 @@ public class ClientService {
     }
 
     /**
-     * This method adds a message to the parking store for further processing.
+     * This method adds a message to the `amqp_outbox` table. When called from within a unit of work, the message is
+     * stored in the same transaction as the other records and published by the outbox relay once committed.
+     *
+     * @param exchange the exchange to publish the message to
+     * @param routingKey the routing key to publish the message with
+     * @param message the message to publish
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void addOutboxMessage(String exchange, String routingKey, Message message) throws ServiceException {
+        Span span = this.tracer
+                .spanBuilder("addOutboxMessage")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("message_id", message.getMessageProperties().getMessageId());
+            span.setAttribute("exchange", exchange);
+            span.setAttribute("routing_key", routingKey);
+
+            try (Connection conn = this.connection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO amqp_outbox (created_at, exchange, routing_key, message_id, content_type, headers, body)
+                    VALUES (?, ?, ?, ?, ?, ?::jsonb, ?)
+                """)) {
+                    st.setTimestamp(1, Timestamp.valueOf(LocalDateTime.now()));
+                    st.setString(2, exchange);
+                    st.setString(3, routingKey);
+                    st.setString(4, message.getMessageProperties().getMessageId());
+                    st.setString(5, message.getMessageProperties().getContentType());
+                    st.setString(6, this.objectMapper.writeValueAsString(message.getMessageProperties().getHeaders()));
+                    st.setBytes(7, message.getBody());
+                    st.executeUpdate();
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException | JsonProcessingException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot store outbox message '{}': {}", message.getMessageProperties().getMessageId(), e.getMessage());
+                throw new ServiceException(String.format("Cannot store outbox message '%s': %s", message.getMessageProperties().getMessageId(), e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * This method records documents uploaded to CMX in the `cmx_compensation_journal` table, so that they can be
+     * removed from CMX if the status file fails, even after a restart, and reused if the status file is processed
+     * again. The entries are written on their own connection and committed immediately, also when a unit of work is
+     * active.
+     *
+     * @param statusFileName the name of the status file the documents belong to
+     * @param documents the CMX documents by client request id
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void addCMXCompensationEntries(String statusFileName, Map<String, CMXDocumentReference> documents) throws ServiceException {
+        if (documents.isEmpty()) {
+            return;
+        }
+
+        List<String> documentIds = new ArrayList<>(documents.size());
+        List<String> requestIds = new ArrayList<>(documents.size());
+        List<String> digests = new ArrayList<>(documents.size());
+        List<Timestamp> createdAts = new ArrayList<>(documents.size());
+        for (Map.Entry<String, CMXDocumentReference> document : documents.entrySet()) {
+            documentIds.add(document.getValue().documentId());
+            requestIds.add(document.getKey());
+            digests.add(document.getValue().sha256());
+            createdAts.add(document.getValue().createdAt() != null ? Timestamp.valueOf(document.getValue().createdAt()) : null);
+        }
+
+        Span span = this.tracer
+                .spanBuilder("addCMXCompensationEntries")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("status_file_name", statusFileName);
+            span.setAttribute("count", documentIds.size());
+
+            try (Connection conn = this.dataSource.getConnection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO cmx_compensation_journal (document_id, status_file_name, created_at, request_id, sha256, document_created_at)
+                    SELECT d.document_id, ?, now(), d.request_id, d.sha256, d.document_created_at
+                    FROM unnest(?::text[], ?::uuid[], ?::text[], ?::timestamp[])
+                        AS d(document_id, request_id, sha256, document_created_at)
+                    ON CONFLICT (document_id) DO NOTHING
+                """)) {
+                    st.setString(1, statusFileName);
+                    st.setArray(2, conn.createArrayOf("varchar", documentIds.toArray(new String[0])));
+                    st.setArray(3, conn.createArrayOf("varchar", requestIds.toArray(new String[0])));
+                    st.setArray(4, conn.createArrayOf("varchar", digests.toArray(new String[0])));
+                    st.setArray(5, conn.createArrayOf("timestamp", createdAts.toArray(new Timestamp[0])));
+                    st.executeUpdate();
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot journal CMX documents of the status file '{}': {}", statusFileName, e.getMessage());
+                throw new ServiceException(String.format("Cannot journal CMX documents of the status file '%s': %s", statusFileName, e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * This method takes over the `cmx_compensation_journal` entries left by earlier attempts of a status file, for the
+     * client requests whose document has the same digest, so that the documents are reused instead of being uploaded
+     * again. Entries currently claimed by the sweep are skipped, as the sweep may be deleting them. The creation time
+     * of the taken over entries is reset, so they are not swept while the status file is processed again. The
+     * entries are updated on their own connection and committed immediately, also when a unit of work is active.
+     *
+     * @param statusFileName the name of the status file the documents belong to
+     * @param digests the SHA-256 digests of the documents by client request id
+     * @return the journaled CMX documents by client request id
+     * @throws ServiceException if any error occurs during processing
+     */
+    public Map<String, CMXDocumentReference> reuseCMXCompensationEntries(String statusFileName, Map<String, String> digests) throws ServiceException {
+        Map<String, CMXDocumentReference> documents = new HashMap<>();
+        if (digests.isEmpty()) {
+            return documents;
+        }
+
+        Span span = this.tracer
+                .spanBuilder("reuseCMXCompensationEntries")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("status_file_name", statusFileName);
+
+            try (Connection conn = this.dataSource.getConnection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    UPDATE cmx_compensation_journal j
+                    SET created_at = now(), attempts = 0, next_attempt_at = NULL
+                    FROM (
+                        SELECT DISTINCT ON (request_id) document_id FROM cmx_compensation_journal
+                        WHERE status_file_name = ?
+                          AND (request_id, sha256) IN (SELECT * FROM unnest(?::uuid[], ?::text[]))
+                          AND (next_attempt_at IS NULL OR next_attempt_at <= now())
+                        ORDER BY request_id, created_at DESC
+                        FOR UPDATE SKIP LOCKED
+                    ) r
+                    WHERE j.document_id = r.document_id
+                    RETURNING j.request_id::text, j.document_id, j.document_created_at, j.sha256
+                """)) {
+                    st.setString(1, statusFileName);
+                    st.setArray(2, conn.createArrayOf("varchar", digests.keySet().toArray(new String[0])));
+                    st.setArray(3, conn.createArrayOf("varchar", digests.values().toArray(new String[0])));
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            Timestamp createdAt = rs.getTimestamp(3);
+                            documents.put(rs.getString(1), new CMXDocumentReference(
+                                    rs.getString(2),
+                                    createdAt != null ? createdAt.toLocalDateTime() : null,
+                                    rs.getString(4)));
+                        }
+                    }
+                    span.setAttribute("count", documents.size());
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot reuse the journaled CMX documents of the status file '{}': {}", statusFileName, e.getMessage());
+                throw new ServiceException(String.format("Cannot reuse the journaled CMX documents of the status file '%s': %s", statusFileName, e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+
+        return documents;
+    }
+
+    /**
+     * This method retrieves the documents still recorded in the `cmx_compensation_journal` table. Documents no longer
+     * journaled are referenced by committed status records and must not be removed from CMX.
+     *
+     * @param documentIds the CMX document IDs
+     * @return the CMX document IDs still journaled
+     * @throws ServiceException if any error occurs during processing
+     */
+    public Set<String> findCMXCompensationEntries(Collection<String> documentIds) throws ServiceException {
+        Set<String> journaled = new HashSet<>();
+        if (documentIds.isEmpty()) {
+            return journaled;
+        }
+
+        Span span = this.tracer
+                .spanBuilder("findCMXCompensationEntries")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("count", documentIds.size());
+
+            try (Connection conn = this.dataSource.getConnection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    SELECT document_id FROM cmx_compensation_journal WHERE document_id = ANY(?)
+                """)) {
+                    st.setArray(1, conn.createArrayOf("varchar", documentIds.toArray(new String[0])));
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            journaled.add(rs.getString(1));
+                        }
+                    }
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot retrieve CMX compensation entries: {}", e.getMessage());
+                throw new ServiceException(String.format("Cannot retrieve CMX compensation entries: %s", e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+
+        return journaled;
+    }
+
+    /**
+     * This method removes documents from the `cmx_compensation_journal` table. When called from within a unit of
+     * work, the entries are removed in the same transaction as the status records referencing the documents.
+     *
+     * @param documentIds the CMX document IDs
+     * @throws ServiceException if any error occurs during processing
+     */
+    public void deleteCMXCompensationEntries(Collection<String> documentIds) throws ServiceException {
+        if (documentIds.isEmpty()) {
+            return;
+        }
+
+        Span span = this.tracer
+                .spanBuilder("deleteCMXCompensationEntries")
+                .startSpan();
+
+        try(Scope scope = span.makeCurrent()) {
+            span.setAttribute("count", documentIds.size());
+
+            try (Connection conn = this.connection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    DELETE FROM cmx_compensation_journal WHERE document_id = ANY(?)
+                """)) {
+                    st.setArray(1, conn.createArrayOf("varchar", documentIds.toArray(new String[0])));
+                    st.executeUpdate();
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot delete CMX compensation entries: {}", e.getMessage());
+                throw new ServiceException(String.format("Cannot delete CMX compensation entries: %s", e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * This method claims the `cmx_compensation_journal` entries left behind by failed or interrupted status files.
+     * Only entries older than the grace period are claimed, and never the entries of a status file whose
+     * `document_processing_log` lease is still live, so that documents of status files still being processed are not
+     * touched however long the processing takes. Claimed entries are not claimed again before the lease has expired.
+     *
+     * @param gracePeriod minimum age of the claimed entries
+     * @param lease time the claimed entries are reserved to the caller
+     * @param limit maximum number of entries claimed
+     * @return the CMX document IDs of the claimed entries
+     * @throws ServiceException if any error occurs during processing
+     */
+    public List<String> claimCMXCompensationEntries(Duration gracePeriod, Duration lease, int limit) throws ServiceException {
+        Span span = this.tracer
+                .spanBuilder("claimCMXCompensationEntries")
+                .startSpan();
+
+        List<String> documentIds = new ArrayList<>();
+        try(Scope scope = span.makeCurrent()) {
+            try (Connection conn = this.dataSource.getConnection()) {
+                try (PreparedStatement st = conn.prepareStatement("""
+                    UPDATE cmx_compensation_journal j
+                    SET attempts = j.attempts + 1, next_attempt_at = now() + ? * interval '1 millisecond'
+                    FROM (
+                        SELECT document_id FROM cmx_compensation_journal
+                        WHERE created_at < now() - ? * interval '1 millisecond'
+                          AND (next_attempt_at IS NULL OR next_attempt_at <= now())
+                          AND NOT EXISTS (
+                              SELECT 1 FROM document_processing_log l
+                              WHERE l.status_file_name = cmx_compensation_journal.status_file_name
+                                AND l.claimed_until > now()
+                          )
+                        ORDER BY created_at
+                        LIMIT ?
+                        FOR UPDATE SKIP LOCKED
+                    ) c
+                    WHERE j.document_id = c.document_id
+                    RETURNING j.document_id
+                """)) {
+                    st.setLong(1, lease.toMillis());
+                    st.setLong(2, gracePeriod.toMillis());
+                    st.setInt(3, limit);
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            documentIds.add(rs.getString(1));
+                        }
+                    }
+                    span.setAttribute("count", documentIds.size());
+                    span.setStatus(StatusCode.OK);
+                }
+            } catch (SQLException e) {
+                span.setStatus(StatusCode.ERROR);
+                span.recordException(e);
+                logger.error("Cannot claim CMX compensation entries: {}", e.getMessage());
+                throw new ServiceException(String.format("Cannot claim CMX compensation entries: %s", e.getMessage()));
+            }
+        } finally {
+            span.end();
+        }
+
+        return documentIds;
+    }
+
+    /**
+     * This method adds a message to the parking store for further processing. The headers are stored as one JSON
+     * document and the payload gzip compressed.
      *
      * @param message the message to add to the parking store
      * @throws ServiceException if any error occurs during processing
@@ -535,40 +1732,32 @@ public class ClientService {
             span.setAttribute("original_exchange", originalExchange);
             span.setAttribute("original_routing_key", originalRoutingKey);
 
-            try (Connection conn = this.dataSource.getConnection()) {
-                DBUtil.setAutoCommit(conn, false);
+            try (Connection conn = this.connection()) {
                 try (PreparedStatement stAddParkingLotMessage = conn.prepareStatement("""
-                    INSERT INTO amqp_parking (message_id, created_at, original_exchange, original_routing_key, payload)
-                    VALUES (?, ?, ?, ?, ?)
+                    INSERT INTO amqp_parking (message_id, created_at, original_exchange, original_routing_key, content_type, headers, payload_encoding, payload)
+                    VALUES (?, ?, ?, ?, ?, ?::jsonb, ?, ?)
                 """)) {
-                    try (PreparedStatement stAddParkingLotMessageHeader = conn.prepareStatement("""
-                                INSERT INTO amqp_parking_header (message_id, header, value)
-                                VALUES (?, ?, ?)
-                            """)) {
-                        String messageId = message.getMessageProperties().getMessageId();
-                        if (messageId == null) {
-                            messageId = UUID.randomUUID().toString();
-                        }
-
-                        stAddParkingLotMessage.setString(1, messageId);
-                        stAddParkingLotMessage.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
-                        stAddParkingLotMessage.setString(3, originalExchange);
-                        stAddParkingLotMessage.setString(4, originalRoutingKey);
-                        stAddParkingLotMessage.setBytes(5, message.getBody());
-                        stAddParkingLotMessage.executeUpdate();
-
-                        for (String key : message.getMessageProperties().getHeaders().keySet()) {
-                            stAddParkingLotMessageHeader.clearParameters();
-                            stAddParkingLotMessageHeader.setString(1, messageId);
-                            stAddParkingLotMessageHeader.setString(2, key);
-                            stAddParkingLotMessageHeader.setString(3, message.getMessageProperties().getHeader(key).toString());
-                            stAddParkingLotMessageHeader.executeUpdate();
-                        }
-                        DBUtil.commit(conn);
-                        span.setStatus(StatusCode.OK);
+                    String messageId = message.getMessageProperties().getMessageId();
+                    if (messageId == null) {
+                        messageId = UUID.randomUUID().toString();
                     }
+
+                    byte[] payload = PayloadCompression.gzip(message.getBody());
+                    span.setAttribute("payload_size", message.getBody().length);
+                    span.setAttribute("stored_size", payload.length);
+
+                    stAddParkingLotMessage.setString(1, messageId);
+                    stAddParkingLotMessage.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
+                    stAddParkingLotMessage.setString(3, originalExchange);
+                    stAddParkingLotMessage.setString(4, originalRoutingKey);
+                    stAddParkingLotMessage.setString(5, message.getMessageProperties().getContentType());
+                    stAddParkingLotMessage.setString(6, AmqpHeaderCodec.encode(this.objectMapper, message.getMessageProperties().getHeaders()));
+                    stAddParkingLotMessage.setString(7, PayloadCompression.GZIP);
+                    stAddParkingLotMessage.setBytes(8, payload);
+                    stAddParkingLotMessage.executeUpdate();
+                    span.setStatus(StatusCode.OK);
                 }
-            } catch (SQLException e) {
+            } catch (SQLException | IOException e) {
                 span.setStatus(StatusCode.ERROR);
                 span.recordException(e);
                 logger.error("Cannot store AMQP message retrieved from the Parking Lot Queue. Message ID: '{}': {}", message.getMessageProperties().getMessageId(), e.getMessage());
@@ -593,7 +1782,15 @@ public class ClientService {
         try(Scope scope = span.makeCurrent()) {
             span.setAttribute("client_id", clientName);
 
-            try (Connection conn = this.dataSource.getConnection()) {
+            ClientConfigurationCache.Lookup lookup = this.clientConfigurationCache.lookup(clientName);
+            if (lookup.entry() != null) {
+                span.setAttribute("cache", "hit");
+                span.setStatus(StatusCode.OK);
+                return toClientConfiguration(lookup.entry());
+            }
+
+            span.setAttribute("cache", "miss");
+            try (Connection conn = this.connection()) {
                 try (PreparedStatement st = conn.prepareStatement("""
                     SELECT client_id, soap_endpoint, response_exchange, response_routing_key
                     FROM CLIENT_CONFIGURATION WHERE client_id = ?
@@ -625,69 +1822,195 @@ public class ClientService {
     }
 
     /**
-     * This method tries to process printed "PP" status file. It will first lock the file record.
-     * Then attempt to process files and if successful just delete record, otherwise increment attempts value.
+     * This method tries to process printed "PP" status file. The file record of `document_processing_log` is used as
+     * a lease: it is claimed with a short statement that skips records locked or leased by another instance, the
+     * documents are then processed without any open transaction, and the record is finally deleted if the file has
+     * been processed, or released with an incremented attempts value and the time of the next attempt otherwise.
+     * If the lease expires before the file is processed, for example because the instance has died, the file can be
+     * claimed by another instance. If CMX is unavailable, the file is deferred: the lease is released with the
+     * attempts unchanged, so an outage does not make the file run out of attempts. The lease is released the same way
+     * when the file now belongs to another replica. Runs skipped by the caller since the last attempt, while the
+     * documents were known to be missing, are counted as the attempts that would have been made once per retry delay.
      *
      * @param statusFileName the name of the status file to process
+     * @param lastAttemptAt time of the last attempt if the caller has skipped the file since then, null otherwise
      */
-    public void tryToProcessPrintedFile(String statusFileName, StatusDocument document, String printedDocumentsPath, ProcessPrintedDocuments process, int maxAttempts) throws ServiceException {
+    public void tryToProcessPrintedFile(String statusFileName, StatusDocument document, String printedDocumentsPath, ProcessPrintedDocuments process, Instant lastAttemptAt, int maxAttempts) throws ServiceException {
         logger.info("Processing status file");
         Span span = this.tracer
-                .spanBuilder("getClientConfiguration")
+                .spanBuilder("tryToProcessPrintedFile")
                 .startSpan();
 
         try(Scope scope = span.makeCurrent()) {
-            span.setAttribute("client_id", statusFileName);
+            span.setAttribute("status_file_name", statusFileName);
+
+            Integer claimedAttempts = this.claimPrintedFile(statusFileName);
+            if (claimedAttempts == null) {
+                logger.debug("Status file '{}' is leased by another instance or not due yet", statusFileName);
+                span.addEvent("Status file is not available");
+                return;
+            }
 
-            try (Connection conn = this.dataSource.getConnection()){
+            claimedAttempts += this.skippedAttempts(lastAttemptAt);
+            int attempts = claimedAttempts + 1;
+            span.setAttribute("attempts", attempts);
+            boolean processed;
+            try {
+                processed = process.processPrintedStatusFile(document, printedDocumentsPath, attempts);
+            } catch (CMXUnavailableException e) {
+                logger.warn("Status file '{}' deferred while CMX is unavailable, {} attempt(s) made", statusFileName, claimedAttempts);
+                span.addEvent("Deferred while CMX is unavailable");
+                this.completePrintedFile(statusFileName, false, claimedAttempts);
+                span.setStatus(StatusCode.OK);
+                return;
+            } catch (StatusFileNotOwnedException e) {
+                // Left to the replica owning the file now, with the attempts made so far
+                this.completePrintedFile(statusFileName, false, claimedAttempts);
+                throw e;
+            } catch (ServiceException e) {
+                this.completePrintedFile(statusFileName, true, attempts);
+                throw e;
+            }
+
+            if (processed) {
+                try {
+                    this.completePrintedFile(statusFileName, true, attempts);
+                } catch (ServiceException e) {
+                    // The status records are committed and the file must not be failed: the lease is left to expire
+                    span.recordException(e);
+                    logger.warn("Status file '{}' has been processed but its lease cannot be completed, leaving it to expire: {}", statusFileName, e.getMessage());
+                }
+            } else if (attempts < maxAttempts) {
+                this.completePrintedFile(statusFileName, false, attempts);
+            } else {
+                this.completePrintedFile(statusFileName, true, attempts);
+                this.failedPrintedFiles.addAndGet(1);
+                logger.error("Could not process '{}' status file after {} attempts. Giving up...", statusFileName, attempts);
+                throw new ServiceException(String.format("Could not process '%s' status file after %d attempts. Giving up...", statusFileName, attempts));
+            }
+            span.setStatus(StatusCode.OK);
+        } catch (ServiceException e) {
+            span.setStatus(StatusCode.ERROR);
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * @return the attempts that would have been made since the last attempt, the current one excluded
+     */
+    private int skippedAttempts(Instant lastAttemptAt) {
+        if (lastAttemptAt == null || this.printedFileRetryDelay.isZero()) {
+            return 0;
+        }
+        long delays = Duration.between(lastAttemptAt, Instant.now()).toMillis() / this.printedFileRetryDelay.toMillis();
+        return (int) Math.max(0, delays - 1);
+    }
+
+    /**
+     * Claims the lease of a printed status file. Runs outside any unit of work, so the lease is visible to the other
+     * instances as soon as it is taken.
+     *
+     * @return the attempts made before this one, or null if the file is leased by another instance or its next
+     * attempt is not due yet
+     */
+    private Integer claimPrintedFile(String statusFileName) throws ServiceException {
+        try (Connection conn = this.dataSource.getConnection()) {
+            try (PreparedStatement st = conn.prepareStatement("""
+                    UPDATE document_processing_log l
+                    SET claimed_by = ?, claimed_until = now() + ? * interval '1 millisecond'
+                    FROM (
+                        SELECT status_file_name FROM document_processing_log
+                        WHERE status_file_name = ?
+                          AND (claimed_until IS NULL OR claimed_until < now())
+                          AND (next_attempt_at IS NULL OR next_attempt_at <= now())
+                        FOR UPDATE SKIP LOCKED
+                    ) c
+                    WHERE l.status_file_name = c.status_file_name
+                    RETURNING l.attempts
+                """)) {
+                st.setString(1, this.instanceId);
+                st.setLong(2, this.printedFileLease.toMillis());
+                st.setString(3, statusFileName);
+                try (ResultSet rs = st.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getInt(1);
+                    }
+                }
+            }
+
+            // First attempt: the record is created already claimed. Nothing is returned if the record exists, in
+            // which case it is leased by another instance or not due yet
+            try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO document_processing_log (status_file_name, attempts, claimed_by, claimed_until)
+                    VALUES (?, 0, ?, now() + ? * interval '1 millisecond')
+                    ON CONFLICT (status_file_name) DO NOTHING
+                    RETURNING attempts
+                """)) {
+                st.setString(1, statusFileName);
+                st.setString(2, this.instanceId);
+                st.setLong(3, this.printedFileLease.toMillis());
+                try (ResultSet rs = st.executeQuery()) {
+                    return rs.next() ? rs.getInt(1) : null;
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Cannot claim status file '{}': {}", statusFileName, e.getMessage());
+            throw new ServiceException(String.format("Cannot claim status file '%s': %s", statusFileName, e.getMessage()));
+        }
+    }
+
+    /**
+     * Completes the lease of a printed status file, either by deleting the record or by releasing it with the
+     * attempts made so far and the time of the next attempt. Does nothing if the lease has been taken over by another
+     * instance in the meantime.
+     */
+    private void completePrintedFile(String statusFileName, boolean done, int attempts) throws ServiceException {
+        try (Connection conn = this.dataSource.getConnection()) {
+            int updated;
+            if (done) {
                 try (PreparedStatement st = conn.prepareStatement("""
-                            SELECT status_file_name, attempts
-                            FROM document_processing_log WHERE status_file_name = ?
-                            FOR UPDATE
-                        """,
-                        ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
+                        DELETE FROM document_processing_log WHERE status_file_name = ? AND claimed_by = ?
+                    """)) {
                     st.setString(1, statusFileName);
-                    try (ResultSet rs = st.executeQuery()) {
-                        if (rs.next()) {
-                            int attempts = rs.getInt(2);
-                            try {
-                                if (!process.processPrintedStatusFile(document, printedDocumentsPath, ++attempts)) {
-                                    if (attempts < maxAttempts) {
-                                        rs.updateInt(2, attempts);
-                                        rs.updateRow();
-                                    } else {
-                                        rs.deleteRow();
-                                        this.failedPrintedFiles.addAndGet(1);
-                                        logger.error("Could not process '{}' status file after {} attempts. Giving up...", statusFileName, attempts);
-                                        throw new ServiceException(String.format("Could not process '%s' status file after %d attempts. Giving up...", statusFileName, attempts));
-                                    }
-                                } else {
-                                    rs.deleteRow();
-                                }
-                            } catch (ServiceException e) {
-                                rs.deleteRow();
-                                throw e;
-                            }
-                        } else {
-                            try (PreparedStatement createFileRecord = conn.prepareStatement("""
-                                INSERT INTO document_processing_log (status_file_name) VALUES (?)
-                            """))  {
-                                createFileRecord.setString(1, statusFileName);
-                                createFileRecord.executeUpdate();
-                            }
-                            process.processPrintedStatusFile(document, printedDocumentsPath, 1);
-                        }
-                    }
+                    st.setString(2, this.instanceId);
+                    updated = st.executeUpdate();
                 }
-            } catch (SQLException e) {
-                span.setStatus(StatusCode.ERROR);
-                span.recordException(e);
-                logger.error("Database exception: {}", e.getMessage());
-                throw new ServiceException(String.format("Cannot retrieve client '%s' configuration: %s", statusFileName, e.getMessage()));
+            } else {
+                try (PreparedStatement st = conn.prepareStatement("""
+                        UPDATE document_processing_log
+                        SET attempts = ?, claimed_by = NULL, claimed_until = NULL,
+                            next_attempt_at = now() + ? * interval '1 millisecond'
+                        WHERE status_file_name = ? AND claimed_by = ?
+                    """)) {
+                    st.setInt(1, attempts);
+                    st.setLong(2, this.printedFileRetryDelay.toMillis());
+                    st.setString(3, statusFileName);
+                    st.setString(4, this.instanceId);
+                    updated = st.executeUpdate();
+                }
+            }
+
+            if (updated == 0) {
+                logger.warn("Lease of status file '{}' has been taken over by another instance", statusFileName);
             }
+        } catch (SQLException e) {
+            logger.error("Cannot complete status file '{}' lease: {}", statusFileName, e.getMessage());
+            throw new ServiceException(String.format("Cannot complete status file '%s' lease: %s", statusFileName, e.getMessage()));
         }
     }
 
+    private static ClientConfiguration toClientConfiguration(ClientConfigurationCache.Entry entry) {
+        return new ClientConfiguration(
+                entry.clientId(),
+                true,
+                entry.soapEndpoint(),
+                entry.responseExchange(),
+                entry.responseRoutingKey());
+    }
+
     public boolean validateDbConnection() {
         try (Connection conn = this.dataSource.getConnection()) {
             try (Statement st = conn.createStatement()) {
@@ -0,0 +1,45 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Computes document digests. Files are memory-mapped in regions and digested from the mapped buffers, so the
+ * content is never copied onto the heap.
+ */
+public final class DocumentDigest {
+
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+    private DocumentDigest() {
+    }
+
+    /**
+     * @param file the file to digest
+     * @return SHA-256 digest of the file content (lower case hexadecimal representation)
+     * @throws IOException if the file cannot be read
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += REGION_SIZE) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+                digest.update(region);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,30 @@
+package axa.partners.clp.mrtdocumentbridge.data;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Result of the duplicate detection for a client request.
+ *
+ * @param batchExists true if the batch Id of the request is already registered
+ * @param requestIds request Ids of the request that are already registered (lower case UUID representation)
+ */
+public record ExistingClientRequests(boolean batchExists, Set<String> requestIds) {
+
+    /**
+     * @return true if neither the batch nor any of the requests are registered
+     */
+    public boolean isEmpty() {
+        return !batchExists && requestIds.isEmpty();
+    }
+
+    /**
+     * Checks whether the given request Id is already registered
+     *
+     * @param requestId request Id as received from the client
+     * @return true if the request Id is already registered
+     */
+    public boolean isDuplicate(String requestId) {
+        return requestId != null && requestIds.contains(requestId.toLowerCase(Locale.ROOT));
+    }
+}
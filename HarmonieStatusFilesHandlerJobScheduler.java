@@ -1,20 +1,29 @@
 package axa.partners.clp.mrtdocumentbridge.task;
 
+import axa.partners.clp.mrtdocumentbridge.data.CMXDocumentReference;
 import axa.partners.clp.mrtdocumentbridge.data.ClientRequestAndRoutingDetails;
 import axa.partners.clp.mrtdocumentbridge.data.Response;
-import axa.partners.clp.mrtdocumentbridge.data.ResponseWrapper;
 import axa.partners.clp.mrtdocumentbridge.data.cmx.AddDocumentResponse;
 import axa.partners.clp.mrtdocumentbridge.data.cmx.Metadata;
 import axa.partners.clp.mrtdocumentbridge.data.harmonie.Request;
 import axa.partners.clp.mrtdocumentbridge.data.harmonie.StatusDocument;
+import axa.partners.clp.mrtdocumentbridge.exception.CMXUnavailableException;
+import axa.partners.clp.mrtdocumentbridge.exception.StatusFileNotOwnedException;
 import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
 import axa.partners.clp.mrtdocumentbridge.processor.ResponseBuilder;
-import axa.partners.clp.mrtdocumentbridge.service.CMXClientService;
+import axa.partners.clp.mrtdocumentbridge.service.CMXCompensationService;
+import axa.partners.clp.mrtdocumentbridge.service.CMXLoadGuard;
+import axa.partners.clp.mrtdocumentbridge.service.CMXUploadPipeline;
 import axa.partners.clp.mrtdocumentbridge.service.ClientService;
 import axa.partners.clp.mrtdocumentbridge.service.FileHandlingService;
 import axa.partners.clp.mrtdocumentbridge.service.ProcessPrintedDocuments;
+import axa.partners.clp.mrtdocumentbridge.service.StatusDocumentCache;
+import axa.partners.clp.mrtdocumentbridge.service.StatusFilePartitionManager;
+import axa.partners.clp.mrtdocumentbridge.service.StreamingStatusDocumentReader;
+import axa.partners.clp.mrtdocumentbridge.util.DocumentDigest;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 import io.opentelemetry.api.OpenTelemetry;
@@ -28,37 +37,59 @@ import io.opentelemetry.context.Scope;
 import io.opentelemetry.context.propagation.TextMapSetter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.AmqpException;
-import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Status file scheduler. Periodically executed to process Harmonie status files for the registered clients
+ * Status file scheduler. Periodically executed to process Harmonie status files for the registered clients.
+ * When the input directory watcher is enabled, the scheduled run acts as a reconciliation sweep for the files the
+ * watcher has missed. In adaptive mode, runs are not driven by the cron schedule but repeated back to back while a
+ * backlog remains, with an exponential backoff while the input directory stays idle.
  */
 @Component
-public class HarmonieStatusFilesHandlerJobScheduler {
+public class HarmonieStatusFilesHandlerJobScheduler implements SmartLifecycle, DisposableBean {
     private static final Logger logger = LoggerFactory.getLogger(HarmonieStatusFilesHandlerJobScheduler.class);
 
-    private final CMXClientService cmxClientService;
-
     private final ClientService clientService;
 
-    private final AmqpTemplate amqpTemplate;
-
     private final OpenTelemetry openTelemetry;
 
     private final ObjectMapper objectMapper;
@@ -85,36 +116,183 @@ public class HarmonieStatusFilesHandlerJobScheduler {
 
     private final int maxAttempts;
 
+    private final ExecutorService workers;
+
+    private final Semaphore workerPermits;
+
+    private final CMXUploadPipeline uploadPipeline;
+
+    private final CMXCompensationService compensationService;
+
+    private final CMXLoadGuard loadGuard;
+
+    private final StatusFilePartitionManager partitionManager;
+
+    private final int maxFilesPerRun;
+
+    private ListedFile listingCursor;
+
+    private final AtomicLong backlogSize;
+
+    private final AtomicLong backlogOldestModified;
+
+    private final Duration adaptiveMinDelay;
+
+    private final Duration adaptiveMaxDelay;
+
+    private final boolean adaptive;
+
+    private Thread adaptiveScheduler;
+
+    private volatile boolean adaptiveRunning;
+
+    private final Set<String> claimedFiles;
+
+    private final StreamingStatusDocumentReader streamingReader;
+
+    private final StatusDocumentCache statusDocumentCache;
+
+    private final Map<String, PendingPrintedFile> pendingPrintedFiles;
+
+    private final Duration maxDocumentWait;
+
+    /**
+     * Printed status file waiting for its documents
+     *
+     * @param missingDocuments documents that were missing on the last attempt
+     * @param since time the file was first seen
+     * @param lastAttemptAt time of the last attempt, runs skipped since then are counted against the attempts
+     */
+    private record PendingPrintedFile(Set<File> missingDocuments, Instant since, Instant lastAttemptAt) {
+    }
+
+    /**
+     * Printed document uploaded to CMX, waiting for its status records to be written
+     *
+     * @param reused true if the CMX document was already stored for the client request and has not been uploaded
+     */
+    private record UploadedDocument(ClientRequestAndRoutingDetails details,
+                                    File documentFile,
+                                    String documentId,
+                                    LocalDateTime documentCreatedAt,
+                                    String sha256,
+                                    boolean reused) {
+    }
+
+    /**
+     * Requests of a status file whose status records have been written. Only what is needed once the file has been
+     * processed is kept, the responses are dropped as soon as their records are written.
+     *
+     * @param statusIds IDs of the status records, to update their status file location
+     * @param documentFiles printed document files, to move them to the processed directory
+     */
+    private record ProcessedRequests(List<String> statusIds, List<File> documentFiles) {
+        ProcessedRequests() {
+            this(new ArrayList<>(), new ArrayList<>());
+        }
+
+        boolean isEmpty() {
+            return this.statusIds.isEmpty();
+        }
+
+        void clear() {
+            this.statusIds.clear();
+            this.documentFiles.clear();
+        }
+    }
+
+    /**
+     * Input directory entry
+     */
+    private record ListedFile(Path path, String name, FileTime lastModified) {
+    }
+
+    /**
+     * Outcome of a run
+     *
+     * @param listed number of files listed for processing
+     * @param completed number of listed files that have left the input directory, processed or moved aside
+     */
+    private record JobRun(int listed, int completed) {
+    }
+
+    /**
+     * Source of the request entries of a status document
+     */
+    @FunctionalInterface
+    private interface RequestSource {
+        void forEachChunk(StreamingStatusDocumentReader.RequestChunkConsumer consumer) throws ServiceException;
+    }
+
     /**
      * Default constructor
      *
+     * @param uploadPipeline Pipeline uploading the printed documents to CMX
+     * @param compensationService Service removing the documents of the failed status files from CMX
+     * @param loadGuard Concurrency limiter and circuit breaker protecting CMX
+     * @param partitionManager Manager of the input directory partitions owned by this replica
      * @param clientService Database service dealing with the client data
+     * @param streamingReader Reader streaming the large status files
+     * @param statusDocumentCache Cache of the parsed printed status documents
      * @param openTelemetry OpenTelemetry object
      * @param version Application version
      * @param objectMapper object mapper
+     * @param maxDocumentWait time a printed status file is skipped while its documents are missing
+     * @param workerCount number of status files processed in parallel
+     * @param virtualThreads true to process the status files on virtual threads
+     * @param maxFilesPerRun maximum number of status files processed per run
+     * @param scheduleMode `cron` to run on the cron schedule, `adaptive` to run back to back while a backlog remains
+     * @param adaptiveMinDelay delay between two adaptive runs once the backlog has been processed
+     * @param adaptiveMaxDelay maximum delay between two adaptive runs while the input directory stays unchanged
      */
-    public HarmonieStatusFilesHandlerJobScheduler(CMXClientService cmxClientService,
+    public HarmonieStatusFilesHandlerJobScheduler(CMXUploadPipeline uploadPipeline,
+                                                  CMXCompensationService compensationService,
+                                                  CMXLoadGuard loadGuard,
+                                                  StatusFilePartitionManager partitionManager,
                                                   ClientService clientService,
-                                                  AmqpTemplate amqpTemplate,
+                                                  StreamingStatusDocumentReader streamingReader,
+                                                  StatusDocumentCache statusDocumentCache,
                                                   FileHandlingService fileHandlingService,
                                                   MeterRegistry registry,
                                                   OpenTelemetry openTelemetry,
                                                   String version,
                                                   @Value("${printed_document.max_attempts:7}") int maxAttempts,
-                                                  ObjectMapper objectMapper) throws ServiceException {
+                                                  @Value("${printed_document.max_wait:PT7M}") Duration maxDocumentWait,
+                                                  ObjectMapper objectMapper,
+                                                  @Value("${harmonie.status_files.workers:1}") int workerCount,
+                                                  @Value("${harmonie.status_files.virtual_threads:false}") boolean virtualThreads,
+                                                  @Value("${harmonie.status_files.max_per_run:1000}") int maxFilesPerRun,
+                                                  @Value("${harmonie.status_files.schedule_mode:cron}") String scheduleMode,
+                                                  @Value("${harmonie.status_files.adaptive.min_delay:PT1S}") Duration adaptiveMinDelay,
+                                                  @Value("${harmonie.status_files.adaptive.max_delay:PT1M}") Duration adaptiveMaxDelay) throws ServiceException {
         logger.info("Creating HarmonieStatusFilesHandlerJobScheduler");
         this.maxAttempts = maxAttempts;
         logger.info("The printed documents processing threshold is {}", this.maxAttempts);
-        this.cmxClientService = cmxClientService;
+        this.uploadPipeline = uploadPipeline;
+        this.compensationService = compensationService;
+        this.loadGuard = loadGuard;
+        this.partitionManager = partitionManager;
+        this.maxFilesPerRun = maxFilesPerRun;
         this.clientService = clientService;
-        this.amqpTemplate = amqpTemplate;
+        this.streamingReader = streamingReader;
+        this.statusDocumentCache = statusDocumentCache;
+        this.pendingPrintedFiles = new ConcurrentHashMap<>();
+        this.maxDocumentWait = maxDocumentWait;
         this.fileHandlingService = fileHandlingService;
         this.openTelemetry = openTelemetry;
         this.tracer = openTelemetry.getTracer(HarmonieStatusFilesHandlerJobScheduler.class.getName(), version);
         this.objectMapper = objectMapper;
         this.registry = registry;
 
-        this.timers = new HashMap<>();
+        this.timers = new ConcurrentHashMap<>();
+        this.claimedFiles = ConcurrentHashMap.newKeySet();
+        this.workerPermits = new Semaphore(workerCount);
+        if (virtualThreads) {
+            this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("status-file-", 0).factory());
+        } else {
+            this.workers = Executors.newFixedThreadPool(workerCount, Thread.ofPlatform().name("status-file-", 0).daemon(true).factory());
+        }
+        logger.info("Status files are processed by {} worker(s){}", workerCount, virtualThreads ? " on virtual threads" : "");
 
         this.inputPath = this.fileHandlingService.path("input");
         this.fileHandlingService.validatePath("input", this.inputPath);
@@ -133,6 +311,53 @@ public class HarmonieStatusFilesHandlerJobScheduler {
 
         String requestPath = this.fileHandlingService.path("request");
         this.fileHandlingService.validatePath("request", requestPath);
+
+        this.backlogSize = new AtomicLong(0);
+        this.backlogOldestModified = new AtomicLong(0);
+        Gauge.builder("harmonie.status_files.backlog.size", this.backlogSize::get)
+                .description("Number of files in the input directory at the last listing")
+                .register(registry);
+        Gauge.builder("harmonie.status_files.backlog.age", this.backlogOldestModified, oldest -> oldest.get() == 0 ? 0 : (System.currentTimeMillis() - oldest.get()) / 1000d)
+                .description("Age of the oldest file in the input directory at the last listing")
+                .baseUnit("seconds")
+                .register(registry);
+
+        this.adaptiveMinDelay = adaptiveMinDelay;
+        this.adaptiveMaxDelay = adaptiveMaxDelay;
+        this.adaptive = "adaptive".equalsIgnoreCase(scheduleMode);
+        if (this.adaptive) {
+            logger.info("Status files are processed in adaptive mode: delay between {} and {}", adaptiveMinDelay, adaptiveMaxDelay);
+        }
+    }
+
+    /**
+     * Starts the adaptive scheduler thread once the application context has been refreshed
+     */
+    @Override
+    public synchronized void start() {
+        if (this.adaptive && this.adaptiveScheduler == null) {
+            this.adaptiveRunning = true;
+            this.adaptiveScheduler = new Thread(this::runAdaptively, "status-file-scheduler");
+            this.adaptiveScheduler.setDaemon(true);
+            this.adaptiveScheduler.start();
+        }
+    }
+
+    /**
+     * Stops the adaptive scheduler thread, the files being processed are completed by the workers
+     */
+    @Override
+    public synchronized void stop() {
+        this.adaptiveRunning = false;
+        if (this.adaptiveScheduler != null) {
+            this.adaptiveScheduler.interrupt();
+            this.adaptiveScheduler = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return this.adaptiveScheduler != null;
     }
 
     /**
@@ -140,6 +365,55 @@ public class HarmonieStatusFilesHandlerJobScheduler {
      */
     @Scheduled(cron = "${cron.harmonieStatusFilesHandlerJobSchedule:0 * * * * *}")
     public void runMRTFilesHandlerJob() {
+        if (this.adaptive) {
+            // Runs are driven by the adaptive scheduler thread
+            return;
+        }
+        this.runJob();
+    }
+
+    /**
+     * Adaptive scheduler loop. Runs the job back to back while the listing returns full batches and the run makes
+     * progress, and otherwise waits between runs with a delay doubled after every run, up to the maximum delay. The
+     * delay is reset when the backlog grows. A backlog that is listed but cannot be processed yet, such as printed
+     * status files waiting for their documents or files deferred while CMX is unavailable, makes no progress and is
+     * therefore not rescanned back to back.
+     */
+    private void runAdaptively() {
+        long delay = this.adaptiveMinDelay.toMillis();
+        long previousBacklog = 0;
+        while (this.adaptiveRunning) {
+            JobRun run = this.runJob();
+            long backlog = this.backlogSize.get();
+            if (run.listed() >= this.maxFilesPerRun && run.completed() > 0) {
+                delay = this.adaptiveMinDelay.toMillis();
+                previousBacklog = backlog;
+                continue;
+            }
+
+            if (backlog > previousBacklog) {
+                delay = this.adaptiveMinDelay.toMillis();
+            }
+            previousBacklog = backlog;
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = Math.min(delay * 2, this.adaptiveMaxDelay.toMillis());
+        }
+    }
+
+    /**
+     * Processes one batch of files from the input directory
+     *
+     * @return numbers of files listed and completed by the run
+     */
+    private JobRun runJob() {
+        int listed = 0;
+        int completed = 0;
         boolean filesFound = false;
         LocalDate today = LocalDate.ofInstant(Instant.now(), ZoneId.of("UTC"));
         if (!today.equals(this.today)) {
@@ -151,92 +425,40 @@ public class HarmonieStatusFilesHandlerJobScheduler {
 
         try(Scope scope = span.makeCurrent()) {
             span.addEvent("Job started");
-            File[] statusFiles = this.fileHandlingService.listFiles(this.inputPath);
+            List<File> statusFiles = this.listOldestFiles();
+            listed = statusFiles.size();
 
-            if (statusFiles != null && statusFiles.length > 0) {
+            if (!statusFiles.isEmpty()) {
                 filesFound = true;
                 span.addEvent("Processing input files", Attributes.of(
                         AttributeKey.stringKey("input_path"), this.inputPath,
-                        AttributeKey.longKey("count"), (long)statusFiles.length
+                        AttributeKey.longKey("count"), (long)statusFiles.size()
                 ));
 
-                logger.info("Found {} file(s) in the input folder", statusFiles.length);
+                logger.info("Processing {} file(s) from the input folder", statusFiles.size());
+                List<Future<?>> tasks = new ArrayList<>();
                 for (File statusFile : statusFiles) {
-                    try {
-                        if (statusFile.isDirectory()) {
-                            logger.debug("Ignoring '{}' as it is a directory", statusFile.getAbsolutePath());
-                            continue;
-                        }
-
-                        if (!statusFile.getAbsolutePath().toUpperCase().endsWith(".XML")) {
-                            logger.warn("Unexpected file '{}' in the input directory. Moving to 'bin'", statusFile.getAbsolutePath());
-                            this.fileHandlingService.moveFile(statusFile, this.binPath);
-                            continue;
-                        }
-
-                        span.addEvent("Processing file", Attributes.of(
-                                AttributeKey.stringKey("path"), statusFile.getAbsolutePath())
-                        );
-                        logger.info("Processing input metadata file '" + statusFile.getAbsolutePath() + "'");
-                        span.addEvent("Reading status document");
-                        StatusDocument document = this.fileHandlingService.readStatusDocument(statusFile.getAbsolutePath(), this.errorPath);
-
-                        span.addEvent("Processing status document");
-
-                        Timer t = this.timers.get(document.getStatus());
-                        if (t == null) {
-                            t = Timer.builder("harmonie_status_file_processing_time")
-                                    .description("Harmonie status file processing time")
-                                    .tag("status", document.getStatus())
-                                    .register(this.registry);
-                            this.timers.put(document.getStatus(), t);
-                        }
+                    Future<?> task = this.submitFile(statusFile, span, () -> {});
+                    if (task != null) {
+                        tasks.add(task);
+                    }
+                }
 
-                        t.recordCallable(() -> {
-                            // Logic goes here
-                            List<ResponseWrapper> rws = this.processStatusFile(statusFile.getName(), document, this.documentPath);
-
-                            if (!rws.isEmpty()) {
-                                span.addEvent("Status document has been processed");
-                                logger.info("Metadata file '" + statusFile.getAbsolutePath() + "' has been processed. Moving it and the corresponding document file to the processing directory.");
-
-                                span.addEvent("Moving status file to the processed directory", Attributes.of(
-                                        AttributeKey.stringKey("processed_path"), this.processedPath));
-                                String statusFilePath = this.fileHandlingService.moveFile(statusFile, this.processedPath);
-
-                                span.addEvent("Updating status file paths");
-                                // Update status file location for each status record
-                                for (ResponseWrapper rw : rws) {
-                                    try {
-                                        span.addEvent("Updating status file path", Attributes.of(
-                                                AttributeKey.stringKey("status_id"), rw.getStatusId(),
-                                                AttributeKey.stringKey("status_file_path"), statusFilePath
-                                        ));
-
-                                        if (rw.getDocumentFile() != null) {
-                                            this.fileHandlingService.moveFile(rw.getDocumentFile(), this.processedPath);
-                                        }
-
-                                        this.clientService.updateRequestStatusFilePath(rw.getStatusId(), statusFilePath);
-                                    } catch (Throwable e) {
-                                        span.recordException(e);
-                                        span.setStatus(StatusCode.ERROR, "Cannot update request status '" + rw.getStatusId() + "' file '" + statusFile.getAbsolutePath() + "' path: " + e.getMessage());
-                                        logger.error(String.format("Cannot update status file location to '%s' for the status Id '%s'", statusFilePath, rw.getStatusId()), e);
-                                    }
-                                }
-                            }
-                            return null;
-                        });
-                    } catch (ServiceException e) {
-                        span.recordException(e);
-                        span.setStatus(StatusCode.ERROR, "Cannot process status file '" + statusFile.getAbsolutePath() + "': " + e.getMessage());
-                        int counter = 0;
-                        logger.error("Cannot process file '" + statusFile.getAbsolutePath() + "': " + e.getMessage() + ".");
+                for (Future<?> task : tasks) {
+                    try {
+                        task.get();
+                    } catch (ExecutionException e) {
+                        logger.error("Status file processing task has failed", e.getCause());
+                    }
+                }
 
-                        String errorPath = this.fileHandlingService.moveFile(statusFile, this.errorPath);
-                        this.clientService.addStatusFileErrorRecord(statusFile.getName(), errorPath, e.getMessage());
+                // Files that are still in the input directory have been skipped, deferred or are being retried
+                for (File statusFile : statusFiles) {
+                    if (!statusFile.exists()) {
+                        completed++;
                     }
                 }
+                span.setAttribute("completed", completed);
             }
             span.addEvent("Job completed");
             logger.debug("Harmonie Status File Handler Job execution has been completed");
@@ -249,182 +471,632 @@ public class HarmonieStatusFilesHandlerJobScheduler {
             }
             span.end();
         }
+        return new JobRun(listed, completed);
+    }
+
+    /**
+     * Lists the oldest files of the input directory, at most the maximum number of files per run. The directory is
+     * streamed and only the oldest files are kept in a bounded heap, so the memory used does not depend on the
+     * backlog size. Listing resumes after the last file returned by the previous run, ordered by modification time
+     * and name, so files that stay in the directory, such as printed status files waiting for their documents, do
+     * not prevent the rest of the backlog from being processed. Once the end of the backlog is reached, the next run
+     * starts from the oldest file again.
+     *
+     * @return the files to process, oldest first
+     * @throws IOException if the input directory cannot be read
+     */
+    private List<File> listOldestFiles() throws IOException {
+        Comparator<ListedFile> order = Comparator.comparing(ListedFile::lastModified).thenComparing(ListedFile::name);
+        PriorityQueue<ListedFile> oldest = new PriorityQueue<>(order.reversed());
+        ListedFile cursor = this.listingCursor;
+        long backlog = 0;
+        long oldestModified = 0;
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(this.inputPath))) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Moved away in the meantime
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    continue;
+                }
+
+                ListedFile file = new ListedFile(entry, entry.getFileName().toString(), attributes.lastModifiedTime());
+                if (!this.partitionManager.owns(entry.toFile())) {
+                    continue;
+                }
+
+                backlog++;
+                long modified = attributes.lastModifiedTime().toMillis();
+                if (oldestModified == 0 || modified < oldestModified) {
+                    oldestModified = modified;
+                }
+                if (cursor != null && order.compare(file, cursor) <= 0) {
+                    continue;
+                }
+
+                oldest.add(file);
+                if (oldest.size() > this.maxFilesPerRun) {
+                    oldest.poll();
+                }
+            }
+        }
+
+        this.backlogSize.set(backlog);
+        this.backlogOldestModified.set(oldestModified);
+
+        List<File> files = new ArrayList<>(oldest.size());
+        ListedFile last = oldest.peek();
+        while (!oldest.isEmpty()) {
+            files.add(oldest.poll().path().toFile());
+        }
+        Collections.reverse(files);
+
+        // A partial run has reached the end of the backlog
+        this.listingCursor = files.size() < this.maxFilesPerRun ? null : last;
+        this.evictPendingFiles();
+        return files;
+    }
+
+    /**
+     * Submits a status file reported by the input directory watcher to the worker pool
+     *
+     * @param statusFile the status file to process
+     * @return the processing task, or null if the file is already being processed
+     * @throws InterruptedException if interrupted while waiting for a free worker
+     */
+    Future<?> submitWatchedFile(File statusFile) throws InterruptedException {
+        Span span = tracer.spanBuilder("processWatchedFile").startSpan();
+        try (Scope scope = span.makeCurrent()) {
+            Future<?> task = this.submitFile(statusFile, span, span::end);
+            if (task == null) {
+                span.end();
+            }
+            return task;
+        } catch (InterruptedException | RuntimeException e) {
+            span.end();
+            throw e;
+        }
+    }
+
+    /**
+     * Submits a status file to the worker pool. The file is claimed for the time of processing, so it is never
+     * processed by two workers at the same time. Files of the partitions owned by other replicas are skipped, and the
+     * partition of the file is not released to another replica until the file has been processed.
+     *
+     * @param statusFile the status file to process
+     * @param span the parent span
+     * @param completion callback executed once the file has been processed
+     * @return the processing task, or null if the file is already being processed or owned by another replica
+     * @throws InterruptedException if interrupted while waiting for a free worker
+     */
+    Future<?> submitFile(File statusFile, Span span, Runnable completion) throws InterruptedException {
+        String key = statusFile.getAbsolutePath();
+        if (!this.claimedFiles.add(key)) {
+            logger.debug("File '{}' is already being processed", key);
+            return null;
+        }
+
+        if (!this.partitionManager.begin(statusFile)) {
+            logger.debug("File '{}' belongs to a partition owned by another replica", statusFile.getName());
+            this.claimedFiles.remove(key);
+            return null;
+        }
+
+        try {
+            this.workerPermits.acquire();
+        } catch (InterruptedException e) {
+            this.partitionManager.end(statusFile);
+            this.claimedFiles.remove(key);
+            throw e;
+        }
+
+        try {
+            return this.workers.submit(Context.current().wrap(() -> {
+                try {
+                    this.processFile(statusFile, span);
+                } finally {
+                    this.partitionManager.end(statusFile);
+                    this.claimedFiles.remove(key);
+                    this.workerPermits.release();
+                    completion.run();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            this.partitionManager.end(statusFile);
+            this.claimedFiles.remove(key);
+            this.workerPermits.release();
+            throw e;
+        }
     }
 
-    private List<ResponseWrapper> processStatusFile(String fileName, StatusDocument document, String printedDocumentsPath) throws ServiceException {
-        List<ResponseWrapper> processedRequests = new ArrayList<>();
+    private void processFile(File statusFile, Span span) {
+        try {
+            if (statusFile.isDirectory()) {
+                logger.debug("Ignoring '{}' as it is a directory", statusFile.getAbsolutePath());
+                return;
+            }
+
+            if (!statusFile.exists()) {
+                logger.debug("File '{}' has already been processed", statusFile.getAbsolutePath());
+                return;
+            }
+
+            String name = statusFile.getName();
+            if (!name.regionMatches(true, name.length() - 4, ".xml", 0, 4)) {
+                logger.warn("Unexpected file '{}' in the input directory. Moving to 'bin'", statusFile.getAbsolutePath());
+                this.fileHandlingService.moveFile(statusFile, this.binPath);
+                return;
+            }
+
+            span.addEvent("Processing file", Attributes.of(
+                    AttributeKey.stringKey("path"), statusFile.getAbsolutePath())
+            );
+            if (this.isWaitingForDocuments(statusFile)) {
+                logger.debug("Printed documents of '{}' have not arrived yet", statusFile.getAbsolutePath());
+                return;
+            }
+
+            logger.info("Processing input metadata file '" + statusFile.getAbsolutePath() + "'");
+            StatusDocument document;
+            RequestSource requests;
+            if (this.streamingReader.shouldStream(statusFile)) {
+                span.addEvent("Streaming status document");
+                document = this.streamingReader.readHeader(statusFile);
+                requests = consumer -> this.streamingReader.forEachChunk(statusFile, consumer);
+            } else {
+                StatusDocument fullDocument = this.statusDocumentCache.get(statusFile);
+                if (fullDocument == null) {
+                    span.addEvent("Reading status document");
+                    fullDocument = this.fileHandlingService.readStatusDocument(statusFile.getAbsolutePath(), this.errorPath);
+                    if ("PP".equals(fullDocument.getStatus())) {
+                        // Printed status files are read again on every run until all the documents have arrived
+                        this.statusDocumentCache.put(statusFile, fullDocument);
+                    }
+                }
+                document = fullDocument;
+                StatusDocument cachedDocument = fullDocument;
+                requests = consumer -> consumer.accept(cachedDocument.getPrintFile().getRequests());
+            }
+
+            span.addEvent("Processing status document");
+
+            Timer t = this.timers.computeIfAbsent(document.getStatus(), status -> Timer.builder("harmonie_status_file_processing_time")
+                    .description("Harmonie status file processing time")
+                    .tag("status", status)
+                    .register(this.registry));
+
+            t.recordCallable(() -> {
+                // Logic goes here
+                ProcessedRequests processed = this.processStatusFile(statusFile, document, requests, this.documentPath);
+
+                if (!processed.isEmpty()) {
+                    this.forgetPendingFile(statusFile);
+                    span.addEvent("Status document has been processed");
+                    logger.info("Metadata file '" + statusFile.getAbsolutePath() + "' has been processed. Moving it and the corresponding document file to the processing directory.");
+
+                    span.addEvent("Moving status file to the processed directory", Attributes.of(
+                            AttributeKey.stringKey("processed_path"), this.processedPath));
+                    String statusFilePath = this.fileHandlingService.moveFile(statusFile, this.processedPath);
+
+                    for (File documentFile : processed.documentFiles()) {
+                        try {
+                            this.fileHandlingService.moveFile(documentFile, this.processedPath);
+                        } catch (Throwable e) {
+                            span.recordException(e);
+                            logger.error(String.format("Cannot move document file '%s'", documentFile), e);
+                        }
+                    }
+                    List<String> statusIds = processed.statusIds();
+
+                    // Status file location of all the status records, updated by a single statement
+                    span.addEvent("Updating status file paths", Attributes.of(
+                            AttributeKey.stringKey("status_file_path"), statusFilePath,
+                            AttributeKey.longKey("status_ids"), (long) statusIds.size()
+                    ));
+                    try {
+                        this.clientService.updateRequestStatusFilePaths(statusIds, statusFilePath);
+                    } catch (ServiceException e) {
+                        span.recordException(e);
+                        span.setStatus(StatusCode.ERROR, "Cannot update the request status paths of file '" + statusFile.getAbsolutePath() + "': " + e.getMessage());
+                        logger.error(String.format("Cannot update status file location to '%s' for %d status Id(s)", statusFilePath, statusIds.size()), e);
+                    }
+                }
+                return null;
+            });
+        } catch (StatusFileNotOwnedException e) {
+            // Rolled back, the file is left to the replica now owning its partition
+            span.recordException(e);
+            logger.warn("Status file '{}' left unprocessed: {}", statusFile.getAbsolutePath(), e.getMessage());
+            this.forgetPendingFile(statusFile);
+        } catch (ServiceException e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR, "Cannot process status file '" + statusFile.getAbsolutePath() + "': " + e.getMessage());
+            logger.error("Cannot process file '" + statusFile.getAbsolutePath() + "': " + e.getMessage() + ".");
+            this.forgetPendingFile(statusFile);
+
+            try {
+                String errorPath = this.fileHandlingService.moveFile(statusFile, this.errorPath);
+                this.clientService.addStatusFileErrorRecord(statusFile.getName(), errorPath, e.getMessage());
+            } catch (ServiceException ex) {
+                span.recordException(ex);
+                logger.error(String.format("Cannot move file '%s' to the error directory", statusFile.getAbsolutePath()), ex);
+            }
+        } catch (Exception e) {
+            span.recordException(e);
+            span.setStatus(StatusCode.ERROR, "Failure while processing file '" + statusFile.getAbsolutePath() + "': " + e.getMessage());
+            logger.error(String.format("Failure while processing file '%s'", statusFile.getAbsolutePath()), e);
+        }
+    }
+
+    private ProcessedRequests processStatusFile(File statusFile, StatusDocument document, RequestSource requests, String printedDocumentsPath) throws ServiceException {
+        ProcessedRequests processedRequests = new ProcessedRequests();
         Span span = tracer.spanBuilder("processStatusFile")
                 .startSpan();
 
-        Map<Long, Boolean> processedRequestIds= new HashMap<>();
+        // File IDs already processed, so the entries repeated across chunks are processed once
+        Set<Long> processedRequestIds = new HashSet<>();
         try(Scope scope = span.makeCurrent()) {
             span.setAttribute("status", document.getStatus());
             if (document.getStatus().equals("PP")) {
                 ProcessPrintedDocuments processPrintedDocuments = (d, p, attempts) -> {
                     if (attempts == 1) {
+                        this.pendingAttempt(statusFile, Set.of());
                         return false;
                     }
 
-                    for (Request fileId : d.getPrintFile().getRequests()) {
-                        File documentFile = new File(p, fileId.getRequestId() + ".pdf");
-                        if (!documentFile.exists() || !documentFile.canRead()) {
-                            return false;
-                        }
+                    Set<File> missingDocuments = this.missingDocuments(requests, p);
+                    if (!missingDocuments.isEmpty()) {
+                        this.pendingAttempt(statusFile, missingDocuments);
+                        return false;
                     }
 
+                    List<UploadedDocument> uploadedDocuments = new ArrayList<>();
                     try {
-                        for (Request fileId : d.getPrintFile().getRequests()) {
-                            if (processedRequestIds.containsKey(fileId.getRequestId())) {
-                                continue;
+                        // Documents are uploaded to CMX concurrently, chunk by chunk, before any database work
+                        requests.forEachChunk(chunk -> {
+                            List<Request> newRequests = new ArrayList<>();
+                            for (Request fileId : chunk) {
+                                if (processedRequestIds.add(fileId.getRequestId())) {
+                                    newRequests.add(fileId);
+                                }
                             }
+                            if (newRequests.isEmpty()) {
+                                return;
+                            }
+                            this.uploadPrintedDocuments(statusFile, newRequests, this.resolveRoutingDetails(newRequests), p, uploadedDocuments);
+                        });
 
-                            File documentFile = null;
-                            processedRequestIds.put(fileId.getRequestId(), true);
-                            ClientRequestAndRoutingDetails details = this.clientService.getRequestIdAndRoutingDetails(fileId.getRequestId());
-                            if (details == null) {
-                                throw new ServiceException(String.format("Cannot find request Id for the file Id %d", fileId.getRequestId()));
+                        // Database records are written in one unit of work. If anything fails, the database rolls
+                        // them back and only the documents uploaded to CMX have to be removed
+                        this.clientService.inUnitOfWork(() -> {
+                            for (UploadedDocument uploaded : uploadedDocuments) {
+                                this.storePrintedDocument(uploaded, d, processedRequests);
                             }
+                            // The documents are referenced by the status records from now on
+                            this.clientService.deleteCMXCompensationEntries(this.documentIds(uploadedDocuments));
+                            this.partitionManager.checkOwnership(statusFile);
+                            return null;
+                        });
+                    } catch (CMXUnavailableException | StatusFileNotOwnedException e) {
+                        // CMX is overloaded or failing, or the file now belongs to another replica: the file is
+                        // deferred without consuming an attempt, instead of being moved to the error directory. The
+                        // uploaded documents stay in the compensation journal, to be reused when the file is processed
+                        // again, or removed by the sweep if it is not
+                        logger.warn("Deferring status file '{}': {}", statusFile.getName(), e.getMessage());
+                        processedRequests.clear();
+                        throw e;
+                    } catch (ServiceException e) {
+                        logger.error("Cannot process Harmonie status XML file", e);
+                        // Rolling back the documents uploaded to CMX, database changes have been rolled back already
+                        this.compensationService.compensate(this.documentIds(uploadedDocuments));
+                        throw e;
+                    }
 
-                            ResponseBuilder rb = new ResponseBuilder(details.requestId());
-                            rb
-                                    .withHarmonieStatusCode(d.getStatus())
-                                    .withStatusCreatedAt(d.getTimestamp());
-                            documentFile = new File(p, fileId.getRequestId() + ".pdf");
-                            if (!documentFile.exists()) {
+                    return true;
+                };
+
+                if (this.loadGuard.isOpen()) {
+                    logger.info("CMX circuit breaker is open, deferring status file '{}'", statusFile.getName());
+                    span.addEvent("Deferred while CMX is unavailable");
+                    return processedRequests;
+                }
 
+                PendingPrintedFile pending = this.pendingPrintedFiles.get(statusFile.getAbsolutePath());
+                Instant lastAttemptAt = pending != null ? pending.lastAttemptAt() : null;
+                this.clientService.tryToProcessPrintedFile(statusFile.getName(), document, printedDocumentsPath, processPrintedDocuments, lastAttemptAt, this.maxAttempts);
+            } else {
+                // All the status records of the file are committed together or not at all
+                this.clientService.inUnitOfWork(() -> {
+                    requests.forEachChunk(chunk -> {
+                        Map<Long, ClientRequestAndRoutingDetails> routingDetails = this.resolveRoutingDetails(chunk);
+                        for (Request fileId : chunk) {
+                            if (processedRequestIds.add(fileId.getRequestId())) {
+                                this.processStatusRequest(fileId, routingDetails.get(fileId.getRequestId()), document, processedRequests);
                             }
-                            Metadata metadata = new Metadata();
-                            metadata.set_class("MedicalRisk");
-                            metadata.set_type("DOCUMENT");
-                            metadata.setMimeType("application/pdf");
-                            metadata.set_name(details + ".pdf");
-                            metadata.setCreationDate(LocalDateTime.now(ZoneId.of("UTC")));
+                        }
+                    });
+                    this.partitionManager.checkOwnership(statusFile);
+                    return null;
+                });
+            }
+        } catch(ServiceException e) {
+            logger.error("Cannot process Harmonie status XML file", e);
+            processedRequests.clear();
+            throw e;
+        } finally {
+            span.end();
+        }
 
-                            AddDocumentResponse documentResponse = this.cmxClientService.addDocument(documentFile, metadata);
+        return processedRequests;
+    }
 
-                            rb
-                                    .withCMXDocumentId(documentResponse.getId())
-                                    .withCMXDocumentCreatedAt(documentResponse.getMetadata().get_creationDate());
+    private Set<File> missingDocuments(RequestSource requests, String printedDocumentsPath) throws ServiceException {
+        Set<File> missing = new HashSet<>();
+        requests.forEachChunk(chunk -> {
+            for (Request fileId : chunk) {
+                File documentFile = new File(printedDocumentsPath, fileId.getRequestId() + ".pdf");
+                if (!documentFile.exists() || !documentFile.canRead()) {
+                    missing.add(documentFile);
+                }
+            }
+        });
+        return missing;
+    }
 
-                            Response response = rb.build();
+    /**
+     * Checks the document arrival index. A printed status file whose documents were missing on the previous attempt
+     * is skipped without being parsed until all the missing documents have arrived, or until the maximum wait time
+     * has passed and the file goes through the regular attempts accounting again. The skipped runs are not free: the
+     * next attempt is charged with the attempts that would have been made in the meantime.
+     */
+    private boolean isWaitingForDocuments(File statusFile) {
+        PendingPrintedFile pending = this.pendingPrintedFiles.get(statusFile.getAbsolutePath());
+        if (pending == null || pending.since().plus(this.maxDocumentWait).isBefore(Instant.now())) {
+            return false;
+        }
 
-                            String statusId = this.clientService.addRequestStatus(response);
-                            if (documentResponse != null) {
-                                this.clientService.updateCMXDocumentId(details.requestId(), documentResponse.getId(), documentResponse.getMetadata().get_creationDate());
-                            }
+        pending.missingDocuments().removeIf(documentFile -> documentFile.exists() && documentFile.canRead());
+        return !pending.missingDocuments().isEmpty();
+    }
 
-                            byte[] body = this.objectMapper.writeValueAsBytes(response);
-                            logger.debug("Prepared the following message: {}", new String(body));
+    /**
+     * Records an attempt of a printed status file whose documents are missing
+     */
+    private void pendingAttempt(File statusFile, Set<File> missingDocuments) {
+        Instant now = Instant.now();
+        this.pendingPrintedFiles.compute(statusFile.getAbsolutePath(), (path, pending) -> {
+            Set<File> missing = pending != null ? pending.missingDocuments() : ConcurrentHashMap.newKeySet();
+            missing.addAll(missingDocuments);
+            return new PendingPrintedFile(missing, pending != null ? pending.since() : now, now);
+        });
+    }
 
-                            MessageBuilder mb = MessageBuilder.withBody(body);
-                            mb.setMessageId(statusId);
-                            mb.setContentType("application/json");
-                            openTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), mb, new TextMapSetter<MessageBuilder>() {
-                                @Override
-                                public void set(MessageBuilder carrier, String key, String value) {
-                                    carrier.setHeader(key, value);
-                                }
-                            });
-                            Message message = mb.build();
+    /**
+     * Forgets the printed status files that have left the input directory, moved by another replica or by hand
+     */
+    private void evictPendingFiles() {
+        for (String path : this.pendingPrintedFiles.keySet()) {
+            File statusFile = new File(path);
+            if (!statusFile.exists()) {
+                this.forgetPendingFile(statusFile);
+            }
+        }
+    }
 
-                            this.amqpTemplate.convertAndSend(details.responseExchange(), details.responseRoutingKey(), message);
+    private void forgetPendingFile(File statusFile) {
+        this.pendingPrintedFiles.remove(statusFile.getAbsolutePath());
+        this.statusDocumentCache.invalidate(statusFile);
+    }
 
-                            processedRequests.add(new ResponseWrapper(response, statusId, documentFile));
-                        }
-                    } catch (ServiceException | AmqpException | JsonProcessingException e) {
-                        logger.error("Cannot process Harmonie status XML file", e);
-                        // Rolling back
-                        for (ResponseWrapper wrapper : processedRequests) {
-                            if (wrapper.getResponse().getDocumentId() != null) {
-                                try {
-                                    this.cmxClientService.deleteDocument(wrapper.getResponse().getDocumentId());
-                                } catch (Throwable ex) {
-                                    logger.error(String.format("Cannot delete CMX document with ID '%s'", wrapper.getResponse().getDocumentId()), ex);
-                                }
-                                try {
-                                    this.clientService.updateCMXDocumentId(wrapper.getResponse().getRequestId(), null, null);
-                                } catch (Throwable ex) {
-                                    logger.error(String.format("Cannot reset CMX document ID in the request record, request Id: '%s'", wrapper.getResponse().getRequestId()), ex);
-                                }
-                            }
-                            try {
-                                this.clientService.deleteRequestStatusRecord(wrapper.getStatusId());
-                            } catch (Throwable ex) {
-                                logger.error(String.format("Cannot delete request status record, request Id '%s', status Id: '%s'", wrapper.getResponse().getRequestId(), wrapper.getStatusId()), ex);
-                            }
-                        }
+    /**
+     * Uploads the documents of the printed requests to CMX concurrently and waits for all the uploads to complete.
+     * Every successful upload is recorded in the compensation journal and added to the uploaded documents, so it can
+     * be removed from CMX if the status file fails, including when another upload of the same chunk has failed.
+     * Documents whose content has already been uploaded for the same client request are not uploaded again: the CMX
+     * document stored for the request is reused, or the document uploaded by an earlier attempt of the status file
+     * that is still in the compensation journal.
+     */
+    private void uploadPrintedDocuments(File statusFile,
+                                        List<Request> requests,
+                                        Map<Long, ClientRequestAndRoutingDetails> routingDetails,
+                                        String printedDocumentsPath,
+                                        List<UploadedDocument> uploadedDocuments) throws ServiceException {
+        List<String> requestIds = new ArrayList<>();
+        for (Request fileId : requests) {
+            ClientRequestAndRoutingDetails details = routingDetails.get(fileId.getRequestId());
+            if (details == null) {
+                throw new ServiceException(String.format("Cannot find request Id for the file Id %d", fileId.getRequestId()));
+            }
+            requestIds.add(details.requestId());
+        }
+        Map<String, CMXDocumentReference> storedDocuments = this.clientService.findCMXDocuments(requestIds);
+
+        Map<Request, String> digests = new HashMap<>();
+        Map<String, String> unstoredDigests = new HashMap<>();
+        for (Request fileId : requests) {
+            ClientRequestAndRoutingDetails details = routingDetails.get(fileId.getRequestId());
+            File documentFile = new File(printedDocumentsPath, fileId.getRequestId() + ".pdf");
+            String digest;
+            try {
+                digest = DocumentDigest.sha256(documentFile);
+            } catch (IOException e) {
+                throw new ServiceException(String.format("Cannot read the document file '%s': %s", documentFile.getAbsolutePath(), e.getMessage()));
+            }
+            digests.put(fileId, digest);
 
-                        if (e instanceof ServiceException) {
-                            throw (ServiceException) e;
-                        } else {
-                            throw new ServiceException("Cannot process Harmonie status XML file: " + e.getMessage());
-                        }
-                    }
+            CMXDocumentReference stored = storedDocuments.get(details.requestId());
+            if (stored == null || !stored.sha256().equals(digest)) {
+                unstoredDigests.put(details.requestId(), digest);
+            }
+        }
+        // Documents uploaded by an earlier attempt of the status file, which have not been compensated yet
+        Map<String, CMXDocumentReference> journaledDocuments = this.clientService.reuseCMXCompensationEntries(statusFile.getName(), unstoredDigests);
+
+        Map<Request, CompletableFuture<AddDocumentResponse>> uploads = new LinkedHashMap<>();
+        for (Request fileId : requests) {
+            ClientRequestAndRoutingDetails details = routingDetails.get(fileId.getRequestId());
+            File documentFile = new File(printedDocumentsPath, fileId.getRequestId() + ".pdf");
+            String digest = digests.get(fileId);
+
+            CMXDocumentReference stored = storedDocuments.get(details.requestId());
+            if (stored != null && stored.sha256().equals(digest)) {
+                logger.info("Document '{}' has already been uploaded as CMX document '{}'", documentFile.getName(), stored.documentId());
+                uploads.put(fileId, null);
+                continue;
+            }
+            CMXDocumentReference journaled = journaledDocuments.get(details.requestId());
+            if (journaled != null) {
+                logger.info("Document '{}' has been uploaded as CMX document '{}' by an earlier attempt", documentFile.getName(), journaled.documentId());
+                // Not uploaded again, the journaled document is used when the responses are built
+                uploads.put(fileId, CompletableFuture.completedFuture(null));
+                continue;
+            }
 
-                    return true;
-                };
+            Metadata metadata = new Metadata();
+            metadata.set_class("MedicalRisk");
+            metadata.set_type("DOCUMENT");
+            metadata.setMimeType("application/pdf");
+            metadata.set_name(details + ".pdf");
+            metadata.setCreationDate(LocalDateTime.now(ZoneId.of("UTC")));
 
-                this.clientService.tryToProcessPrintedFile(fileName, document, printedDocumentsPath, processPrintedDocuments, this.maxAttempts);
+            uploads.put(fileId, this.uploadPipeline.upload(documentFile, metadata));
+        }
+
+        ServiceException failure = null;
+        Map<String, CMXDocumentReference> journalEntries = new HashMap<>();
+        for (Map.Entry<Request, CompletableFuture<AddDocumentResponse>> upload : uploads.entrySet()) {
+            ClientRequestAndRoutingDetails details = routingDetails.get(upload.getKey().getRequestId());
+            File documentFile = new File(printedDocumentsPath, upload.getKey().getRequestId() + ".pdf");
+            String documentId;
+            LocalDateTime documentCreatedAt;
+            boolean reused = upload.getValue() == null;
+            if (reused) {
+                CMXDocumentReference stored = storedDocuments.get(details.requestId());
+                documentId = stored.documentId();
+                documentCreatedAt = stored.createdAt();
+            } else if (journaledDocuments.containsKey(details.requestId())) {
+                // Still journaled, so written and removed from the journal like a new upload
+                CMXDocumentReference journaled = journaledDocuments.get(details.requestId());
+                documentId = journaled.documentId();
+                documentCreatedAt = journaled.createdAt();
             } else {
-                for (Request fileId : document.getPrintFile().getRequests()) {
-                    if (processedRequestIds.containsKey(fileId.getRequestId())) {
-                        continue;
+                try {
+                    AddDocumentResponse documentResponse = CMXUploadPipeline.await(upload.getValue());
+                    documentId = documentResponse.getId();
+                    documentCreatedAt = documentResponse.getMetadata().get_creationDate();
+                } catch (ServiceException e) {
+                    if (failure == null) {
+                        failure = e;
                     }
+                    continue;
+                }
+                journalEntries.put(details.requestId(), new CMXDocumentReference(documentId, documentCreatedAt, digests.get(upload.getKey())));
+            }
 
-                    File documentFile = null;
-                    processedRequestIds.put(fileId.getRequestId(), true);
-                    ClientRequestAndRoutingDetails details = this.clientService.getRequestIdAndRoutingDetails(fileId.getRequestId());
-                    if (details == null) {
-                        throw new ServiceException(String.format("Cannot find request Id for the file Id %d", fileId.getRequestId()));
-                    }
+            uploadedDocuments.add(new UploadedDocument(details, documentFile, documentId, documentCreatedAt, digests.get(upload.getKey()), reused));
+        }
 
-                    ResponseBuilder rb = new ResponseBuilder(details.requestId());
-                    rb
-                            .withHarmonieStatusCode(document.getStatus())
-                            .withStatusCreatedAt(document.getTimestamp());
+        this.clientService.addCMXCompensationEntries(statusFile.getName(), journalEntries);
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-                    Response response = rb.build();
+    /**
+     * @return IDs of the documents uploaded while processing the status file, the reused documents are excluded
+     */
+    private List<String> documentIds(List<UploadedDocument> uploadedDocuments) {
+        List<String> documentIds = new ArrayList<>();
+        for (UploadedDocument uploaded : uploadedDocuments) {
+            if (!uploaded.reused()) {
+                documentIds.add(uploaded.documentId());
+            }
+        }
+        return documentIds;
+    }
 
-                    String statusId = this.clientService.addRequestStatus(response);
-                    byte[] body = this.objectMapper.writeValueAsBytes(response);
-                    logger.debug("Prepared the following message: {}", new String(body));
+    private void storePrintedDocument(UploadedDocument uploaded, StatusDocument document, ProcessedRequests processedRequests) throws ServiceException {
+        ResponseBuilder rb = new ResponseBuilder(uploaded.details().requestId());
+        rb
+                .withHarmonieStatusCode(document.getStatus())
+                .withStatusCreatedAt(document.getTimestamp());
+        rb
+                .withCMXDocumentId(uploaded.documentId())
+                .withCMXDocumentCreatedAt(uploaded.documentCreatedAt());
+
+        Response response = rb.build();
+        String statusId = this.clientService.addRequestStatus(response);
+        if (!uploaded.reused()) {
+            this.clientService.updateCMXDocumentId(uploaded.details().requestId(), uploaded.documentId(), uploaded.documentCreatedAt(), uploaded.sha256());
+        }
 
-                    MessageBuilder mb = MessageBuilder.withBody(body);
-                    mb.setMessageId(statusId);
-                    mb.setContentType("application/json");
-                    openTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), mb, new TextMapSetter<MessageBuilder>() {
-                        @Override
-                        public void set(MessageBuilder carrier, String key, String value) {
-                            carrier.setHeader(key, value);
-                        }
-                    });
-                    Message message = mb.build();
+        this.sendResponse(uploaded.details(), response, statusId);
 
-                    this.amqpTemplate.convertAndSend(details.responseExchange(), details.responseRoutingKey(), message);
+        processedRequests.statusIds().add(statusId);
+        processedRequests.documentFiles().add(uploaded.documentFile());
+    }
 
-                    processedRequests.add(new ResponseWrapper(response, statusId, documentFile));
-                }
-            }
-        } catch(ServiceException | AmqpException | JsonProcessingException e) {
-            logger.error("Cannot process Harmonie status XML file", e);
-            // Rolling back
-            for (ResponseWrapper wrapper : processedRequests) {
-                try {
-                    this.clientService.deleteRequestStatusRecord(wrapper.getStatusId());
-                } catch (Throwable ex) {
-                    logger.error(String.format("Cannot delete request status record, request Id '%s', status Id: '%s'", wrapper.getResponse().getRequestId(), wrapper.getStatusId()), ex);
-                }
-            }
+    private void processStatusRequest(Request fileId,
+                                      ClientRequestAndRoutingDetails details,
+                                      StatusDocument document,
+                                      ProcessedRequests processedRequests) throws ServiceException {
+        if (details == null) {
+            throw new ServiceException(String.format("Cannot find request Id for the file Id %d", fileId.getRequestId()));
+        }
 
-            if (e instanceof ServiceException) {
-                throw (ServiceException) e;
-            } else {
-                throw new ServiceException(e.getMessage());
+        ResponseBuilder rb = new ResponseBuilder(details.requestId());
+        rb
+                .withHarmonieStatusCode(document.getStatus())
+                .withStatusCreatedAt(document.getTimestamp());
+
+        Response response = rb.build();
+
+        String statusId = this.clientService.addRequestStatus(response);
+        this.sendResponse(details, response, statusId);
+
+        processedRequests.statusIds().add(statusId);
+    }
+
+    private void sendResponse(ClientRequestAndRoutingDetails details, Response response, String statusId) throws ServiceException {
+        byte[] body;
+        try {
+            body = this.objectMapper.writeValueAsBytes(response);
+        } catch (JsonProcessingException e) {
+            throw new ServiceException(String.format("Cannot serialize response for the request Id '%s': %s", details.requestId(), e.getMessage()));
+        }
+        logger.debug("Prepared the following message: {}", new String(body));
+
+        MessageBuilder mb = MessageBuilder.withBody(body);
+        mb.setMessageId(statusId);
+        mb.setContentType("application/json");
+        openTelemetry.getPropagators().getTextMapPropagator().inject(Context.current(), mb, new TextMapSetter<MessageBuilder>() {
+            @Override
+            public void set(MessageBuilder carrier, String key, String value) {
+                carrier.setHeader(key, value);
             }
-        } finally {
-            span.end();
+        });
+        Message message = mb.build();
+
+        // Published by the outbox relay once the unit of work is committed
+        this.clientService.addOutboxMessage(details.responseExchange(), details.responseRoutingKey(), message);
+    }
+
+    private Map<Long, ClientRequestAndRoutingDetails> resolveRoutingDetails(List<Request> requests) throws ServiceException {
+        List<Long> fileIds = new ArrayList<>();
+        for (Request fileId : requests) {
+            fileIds.add(fileId.getRequestId());
         }
+        return this.clientService.getRequestIdAndRoutingDetails(fileIds);
+    }
 
-        return processedRequests;
+    @Override
+    public void destroy() {
+        this.stop();
+        this.workers.shutdownNow();
     }
 }
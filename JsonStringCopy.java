@@ -0,0 +1,132 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies a JSON string value from a UTF-8 JSON document to a channel, unescaping it on the fly. The value is copied
+ * through a bounded buffer, so it is never held in memory as a whole.
+ */
+public final class JsonStringCopy {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private JsonStringCopy() {
+    }
+
+    /**
+     * @param json UTF-8 JSON document
+     * @param offset offset of the opening quote of the string value
+     * @param channel channel the unescaped value is written to, UTF-8 encoded
+     * @return number of bytes written
+     * @throws IOException if the value is not a valid JSON string or cannot be written
+     */
+    public static long copy(byte[] json, int offset, WritableByteChannel channel) throws IOException {
+        if (offset < 0 || offset >= json.length || json[offset] != '"') {
+            throw new IOException(String.format("No JSON string at offset %d", offset));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0;
+        int i = offset + 1;
+        while (true) {
+            // Copies the run of bytes up to the next quote or escape as is
+            int run = i;
+            while (run < json.length && json[run] != '"' && json[run] != '\\') {
+                run++;
+            }
+            while (i < run) {
+                if (!buffer.hasRemaining()) {
+                    written += flush(buffer, channel);
+                }
+                int length = Math.min(run - i, buffer.remaining());
+                buffer.put(json, i, length);
+                i += length;
+            }
+
+            if (i >= json.length) {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (json[i++] == '"') {
+                break;
+            }
+
+            if (buffer.remaining() < 4) {
+                written += flush(buffer, channel);
+            }
+            if (i >= json.length) {
+                throw new IOException("Unterminated JSON escape sequence");
+            }
+            byte escaped = json[i++];
+            switch (escaped) {
+                case '"', '\\', '/' -> buffer.put(escaped);
+                case 'b' -> buffer.put((byte) '\b');
+                case 'f' -> buffer.put((byte) '\f');
+                case 'n' -> buffer.put((byte) '\n');
+                case 'r' -> buffer.put((byte) '\r');
+                case 't' -> buffer.put((byte) '\t');
+                case 'u' -> {
+                    int codePoint = hex(json, i);
+                    i += 4;
+                    if (Character.isHighSurrogate((char) codePoint)
+                            && i + 5 < json.length && json[i] == '\\' && json[i + 1] == 'u'
+                            && Character.isLowSurrogate((char) hex(json, i + 2))) {
+                        codePoint = Character.toCodePoint((char) codePoint, (char) hex(json, i + 2));
+                        i += 6;
+                    } else if (Character.isSurrogate((char) codePoint)) {
+                        // Unpaired surrogate, replaced as the UTF-8 encoder would
+                        codePoint = '?';
+                    }
+                    putUtf8(buffer, codePoint);
+                }
+                default -> throw new IOException(String.format("Invalid JSON escape sequence '\\%c'", (char) escaped));
+            }
+        }
+        written += flush(buffer, channel);
+        return written;
+    }
+
+    private static int hex(byte[] json, int offset) throws IOException {
+        if (offset + 4 > json.length) {
+            throw new IOException("Unterminated JSON unicode escape sequence");
+        }
+        int value = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            int digit = Character.digit(json[i], 16);
+            if (digit < 0) {
+                throw new IOException("Invalid JSON unicode escape sequence");
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private static void putUtf8(ByteBuffer buffer, int codePoint) {
+        if (codePoint < 0x80) {
+            buffer.put((byte) codePoint);
+        } else if (codePoint < 0x800) {
+            buffer.put((byte) (0xc0 | codePoint >> 6));
+            buffer.put((byte) (0x80 | codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            buffer.put((byte) (0xe0 | codePoint >> 12));
+            buffer.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+            buffer.put((byte) (0x80 | codePoint & 0x3f));
+        } else {
+            buffer.put((byte) (0xf0 | codePoint >> 18));
+            buffer.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+            buffer.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+            buffer.put((byte) (0x80 | codePoint & 0x3f));
+        }
+    }
+
+    private static int flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        int written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+}
@@ -0,0 +1,117 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonStringCopyTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void copiesPlainText() throws Exception {
+        this.assertSameAsJackson("\"hello world\"");
+    }
+
+    @Test
+    void copiesMultiByteCharacters() throws Exception {
+        this.assertSameAsJackson("\"déjà vu – 日本語 😀\"");
+    }
+
+    @Test
+    void unescapesTheSimpleEscapes() throws Exception {
+        this.assertSameAsJackson("\"\\\" \\\\ \\/ \\b \\f \\n \\r \\t\"");
+    }
+
+    @Test
+    void unescapesUnicodeEscapes() throws Exception {
+        this.assertSameAsJackson("\"\\u0041 \\u00e9 \\u20AC \\u65e5\"");
+    }
+
+    @Test
+    void unescapesSurrogatePairs() throws Exception {
+        this.assertSameAsJackson("\"\\ud83d\\ude00 and \\uD834\\uDD1E\"");
+    }
+
+    @Test
+    void replacesLoneSurrogates() throws Exception {
+        this.assertSameAsJackson("\"\\ud83d alone\"");
+        this.assertSameAsJackson("\"\\ude00 alone\"");
+        this.assertSameAsJackson("\"\\ud83d\\u0041\"");
+        this.assertSameAsJackson("\"\\ud83d\\n\"");
+        this.assertSameAsJackson("\"trailing \\ud83d\"");
+    }
+
+    @Test
+    void startsAtTheGivenOffset() throws Exception {
+        byte[] json = "{\"payload\":\"a\\tb\"}".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        JsonStringCopy.copy(json, 11, Channels.newChannel(out));
+
+        assertArrayEquals("a\tb".getBytes(StandardCharsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    void copiesEscapesAcrossTheBufferBoundary() throws Exception {
+        // Every escape lands on each of the last positions of the buffer, including the 4 byte sequences
+        for (int padding = JsonStringCopy.BUFFER_SIZE - 5; padding <= JsonStringCopy.BUFFER_SIZE + 1; padding++) {
+            String filler = "x".repeat(padding);
+            this.assertSameAsJackson("\"" + filler + "\\n" + filler + "\"");
+            this.assertSameAsJackson("\"" + filler + "\\u00e9\\u20ac\"");
+            this.assertSameAsJackson("\"" + filler + "\\ud83d\\ude00\\ud83d\\ude00\"");
+            this.assertSameAsJackson("\"" + filler + "日本\"");
+        }
+    }
+
+    @Test
+    void copiesPayloadsLargerThanTheBuffer() throws Exception {
+        StringBuilder json = new StringBuilder("\"");
+        while (json.length() < 5 * JsonStringCopy.BUFFER_SIZE) {
+            json.append("line \\\"quoted\\\" é \\u00e9 \\ud83d\\ude00 😀\\r\\n");
+        }
+        json.append('"');
+
+        this.assertSameAsJackson(json.toString());
+    }
+
+    @Test
+    void rejectsUnterminatedInput() {
+        this.assertRejected("\"unterminated");
+        this.assertRejected("\"" + "x".repeat(2 * JsonStringCopy.BUFFER_SIZE));
+        this.assertRejected("\"escape \\");
+        this.assertRejected("\"unicode \\u12");
+        this.assertRejected("\"surrogate \\ud83d\\ude0");
+    }
+
+    @Test
+    void rejectsInvalidInput() {
+        this.assertRejected("not a string");
+        this.assertRejected("\"invalid \\x escape\"");
+        this.assertRejected("\"invalid \\u12g4 escape\"");
+    }
+
+    private void assertSameAsJackson(String json) throws Exception {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        byte[] expected = this.objectMapper.readValue(bytes, String.class).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long written = JsonStringCopy.copy(bytes, 0, Channels.newChannel(out));
+
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(expected.length, written);
+    }
+
+    private void assertRejected(String json) {
+        assertThrows(IOException.class,
+                () -> JsonStringCopy.copy(json.getBytes(StandardCharsets.UTF_8), 0, Channels.newChannel(new ByteArrayOutputStream())));
+    }
+}
@@ -1,13 +1,22 @@
 package axa.partners.clp.mrtdocumentbridge.controller;
 
 import axa.partners.clp.mrtdocumentbridge.data.Document;
+import axa.partners.clp.mrtdocumentbridge.data.ExistingClientRequests;
 import axa.partners.clp.mrtdocumentbridge.data.Request;
 import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
 import axa.partners.clp.mrtdocumentbridge.service.ClientService;
 import axa.partners.clp.mrtdocumentbridge.service.FileHandlingService;
+import axa.partners.clp.mrtdocumentbridge.service.RetryTopologyManager;
+import axa.partners.clp.mrtdocumentbridge.util.JsonStringCopy;
+import axa.partners.clp.mrtdocumentbridge.util.TracingPolicy;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
 import io.opentelemetry.api.OpenTelemetry;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
@@ -24,12 +33,27 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import static axa.partners.clp.mrtdocumentbridge.config.RabbitBatchListenerConfiguration.BATCH_LISTENER_CONTAINER_FACTORY;
 import static axa.partners.clp.mrtdocumentbridge.config.RabbitMQConfiguration.*;
 
 @Component
@@ -42,6 +66,8 @@ public class MessageProcessor {
 
     public static final String HEADER_X_ORIGINAL_ROUTING_KEY = "X-Original-Routing-Key";
 
+    private static final String PAYLOAD_FIELD = "payload";
+
     @Value("${rabbitmq.maxRetries:5}")
     int maxRetries;
 
@@ -51,7 +77,10 @@ public class MessageProcessor {
     @Value("${rabbitmq.dlq.multiplier:2}")
     int multiplier;
 
-    private final AmqpAdmin amqpAdmin;
+    @Value("${client_request.accept_partial_batches:false}")
+    boolean acceptPartialBatches;
+
+    private final RetryTopologyManager retryTopologyManager;
 
     private final AmqpTemplate amqpTemplate;
 
@@ -65,6 +94,10 @@ public class MessageProcessor {
 
     private final ObjectMapper objectMapper;
 
+    private final ObjectMapper requestReader;
+
+    private final TracingPolicy tracingPolicy;
+
     /**
      * Message processor default constructor. Attempts to autowire the dependencies
      *
@@ -72,86 +105,290 @@ public class MessageProcessor {
      * @param clientService service that interacts with DB
      */
     @Autowired
-    public MessageProcessor(AmqpAdmin amqpAdmin,
+    public MessageProcessor(RetryTopologyManager retryTopologyManager,
                             AmqpTemplate amqpTemplate,
                             ClientService clientService,
                             FileHandlingService fileHandlingService,
                             OpenTelemetry openTelemetry,
                             String version,
-                            ObjectMapper objectMapper) {
-        this.amqpAdmin = amqpAdmin;
+                            ObjectMapper objectMapper,
+                            TracingPolicy tracingPolicy) {
+        this.retryTopologyManager = retryTopologyManager;
         this.amqpTemplate = amqpTemplate;
         this.clientService = clientService;
         this.requestPath = fileHandlingService.path("request");
         this.openTelemetry = openTelemetry;
         this.tracer = openTelemetry.getTracer(MessageProcessor.class.getName(), version);
         this.objectMapper = objectMapper;
+        this.requestReader = objectMapper.copy().addMixIn(Request.class, RequestWithoutPayload.class);
+        this.tracingPolicy = tracingPolicy;
     }
 
     /**
-     * Document Creation/Registration queue listener
+     * Document Creation/Registration queue listener. Not started when the batch listener is enabled.
      *
      * @param message inbound message
      */
     @RabbitListener(
             id = "process",
-            queues = AMQP_REQUEST_QUEUE)
+            queues = AMQP_REQUEST_QUEUE,
+            autoStartup = "#{!${amqp.request.batch.enabled:false}}")
     @Transactional
     public void process(Message message) {
         Span serverSpan = buildSpan(message.getMessageProperties());
 
         try (Scope scope = serverSpan.makeCurrent()) {
-            Request request = null;
+            Request request = this.readRequest(message, serverSpan);
+
             try {
-                request = this.objectMapper.readValue(message.getBody(), Request.class);
-            } catch (Throwable e) {
-                throw new AmqpRejectAndDontRequeueException(String.format("Cannot convert message payload: %s'", e.getMessage()));
+                // Registration and payload file are one unit of work, the records are rolled back if the payload cannot be stored
+                this.clientService.inUnitOfWork(() -> {
+                    this.register(message, request, this.clientService.findExistingClientRequests(request), serverSpan);
+                    return null;
+                });
+            } catch (ServiceException e) {
+                throw new AmqpRejectAndDontRequeueException(e.getMessage());
             }
+        } finally {
+            serverSpan.end();
+        }
+    }
+
+    /**
+     * Document Creation/Registration queue batch listener. Started instead of {@link #process(Message)} when the
+     * batch listener is enabled. The duplicate check and the inserts of all the new requests of the batch are made
+     * with one query each, in one unit of work. If the batch cannot be registered as a whole, the payload files it has
+     * written are deleted and its messages are registered one by one. Every message is acknowledged or rejected
+     * exactly once, on its own, messages left unsettled by an unexpected failure are rejected.
+     *
+     * @param messages inbound messages
+     * @param channel channel the messages have been received on
+     */
+    @RabbitListener(
+            id = "processBatch",
+            queues = AMQP_REQUEST_QUEUE,
+            containerFactory = BATCH_LISTENER_CONTAINER_FACTORY,
+            autoStartup = "${amqp.request.batch.enabled:false}")
+    public void processBatch(List<Message> messages, Channel channel) {
+        SpanBuilder spanBuilder = this.tracer.spanBuilder(AMQP_REQUEST_QUEUE + "_receive_batch")
+                .setSpanKind(SpanKind.CONSUMER);
+        for (Message message : messages) {
+            spanBuilder.addLink(Span.fromContext(extractContext(message.getMessageProperties())).getSpanContext());
+        }
+        Span batchSpan = spanBuilder.startSpan();
 
-            if (request.getCorrelationId() != null) {
-                serverSpan.setAttribute("correlationId", request.getCorrelationId());
-                logger.info("Processing message (correlationId '{}')", request.getCorrelationId());
+        // Delivery tags not acknowledged or rejected yet
+        Set<Long> unsettled = new LinkedHashSet<>();
+        for (Message message : messages) {
+            unsettled.add(message.getMessageProperties().getDeliveryTag());
+        }
+
+        try (Scope scope = batchSpan.makeCurrent()) {
+            batchSpan.setAttribute("batch_size", messages.size());
+            logger.info("Received batch of {} message(s)", messages.size());
+
+            Map<Message, Request> requests = new LinkedHashMap<>();
+            for (Message message : messages) {
+                try {
+                    requests.put(message, this.readRequest(message, batchSpan));
+                } catch (Exception e) {
+                    logger.error("Rejecting message: {}", e.getMessage());
+                    settle(channel, unsettled, message, false);
+                }
             }
 
-            if (request.getBatchId() != null && !request.getBatchId().isEmpty()) {
-                serverSpan.setAttribute("batchId", request.getBatchId());
-                logger.info("Processing batch '{}'", request.getBatchId());
+            if (requests.isEmpty()) {
+                return;
             }
-            if (request.getDocuments() != null) {
-                serverSpan.setAttribute("numberOfDocument", request.getDocuments().size());
-                logger.info("Received total {} requests", request.getDocuments().size());
+
+            List<File> payloadFiles = new ArrayList<>();
+            try {
+                List<Request> batch = new ArrayList<>(requests.values());
+                this.clientService.inUnitOfWork(() -> {
+                    if (hasOverlappingRequests(batch)) {
+                        throw new ServiceException("Messages of the batch register the same batch or request Ids");
+                    }
+
+                    Map<Request, ExistingClientRequests> existing = this.clientService.findExistingClientRequests(batch);
+                    Map<Message, Request> newRequests = new LinkedHashMap<>();
+                    for (Map.Entry<Message, Request> entry : requests.entrySet()) {
+                        if (existing.get(entry.getValue()).isEmpty()) {
+                            newRequests.put(entry.getKey(), entry.getValue());
+                        } else {
+                            this.register(entry.getKey(), entry.getValue(), existing.get(entry.getValue()), batchSpan);
+                        }
+                    }
+
+                    this.clientService.addClientRequests(new ArrayList<>(newRequests.values()), "doc_registered");
+                    for (Map.Entry<Message, Request> entry : newRequests.entrySet()) {
+                        File payloadFile = this.storePayloadIfRequired(entry.getKey(), entry.getValue());
+                        if (payloadFile != null) {
+                            payloadFiles.add(payloadFile);
+                        }
+                    }
+                    return null;
+                });
+
+                for (Message message : requests.keySet()) {
+                    settle(channel, unsettled, message, true);
+                }
+                batchSpan.setStatus(StatusCode.OK);
+                return;
+            } catch (Exception e) {
+                logger.warn("Cannot register batch of {} message(s), registering them one by one: {}", requests.size(), e.getMessage());
+                // The records of the batch have been rolled back, so must be its payload files
+                for (File payloadFile : payloadFiles) {
+                    if (!payloadFile.delete() && payloadFile.exists()) {
+                        logger.warn("Cannot delete payload file '{}' of the failed batch", payloadFile.getAbsolutePath());
+                    }
+                }
             }
 
-            int i = 0;
-            for (Document document : request.getDocuments()) {
-                serverSpan.setAttribute(String.format("request_id_%d", i++), document.getRequestId());
-                logger.info("Processing request '{}'", document.getRequestId());
+            for (Map.Entry<Message, Request> entry : requests.entrySet()) {
+                try {
+                    this.clientService.inUnitOfWork(() -> {
+                        this.register(entry.getKey(), entry.getValue(), this.clientService.findExistingClientRequests(entry.getValue()), batchSpan);
+                        return null;
+                    });
+                    settle(channel, unsettled, entry.getKey(), true);
+                } catch (Exception e) {
+                    logger.error("Rejecting message: {}", e.getMessage());
+                    settle(channel, unsettled, entry.getKey(), false);
+                }
             }
+        } finally {
+            for (long deliveryTag : unsettled) {
+                try {
+                    channel.basicReject(deliveryTag, false);
+                } catch (Exception e) {
+                    logger.error("Cannot reject message with delivery tag {}: {}", deliveryTag, e.getMessage());
+                }
+            }
+            batchSpan.end();
+        }
+    }
 
-            if (!this.validateCommand(request.getCommand())) {
-                throw new AmqpRejectAndDontRequeueException("Incorrect command in the message: '" + request.getCommand() + "'");
+    /**
+     * Acknowledges or rejects the message, unless it has already been
+     */
+    private static void settle(Channel channel, Set<Long> unsettled, Message message, boolean ack) {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        if (!unsettled.remove(deliveryTag)) {
+            return;
+        }
+        try {
+            if (ack) {
+                channel.basicAck(deliveryTag, false);
+            } else {
+                channel.basicReject(deliveryTag, false);
             }
+        } catch (Exception e) {
+            // The broker redelivers the messages of a broken channel
+            logger.error("Cannot {} message with delivery tag {}: {}", ack ? "acknowledge" : "reject", deliveryTag, e.getMessage());
+        }
+    }
 
-            serverSpan.setAttribute("command", request.getCommand());
+    /**
+     * Reads and validates the client request of a message. The payload is not read, it is copied from the message
+     * body to the request file when required.
+     *
+     * @throws AmqpRejectAndDontRequeueException if the message is not a valid client request
+     */
+    private Request readRequest(Message message, Span serverSpan) {
+        Request request = null;
+        try {
+            request = this.requestReader.readValue(message.getBody(), Request.class);
+        } catch (Throwable e) {
+            throw new AmqpRejectAndDontRequeueException(String.format("Cannot convert message payload: %s'", e.getMessage()));
+        }
 
-            try {
-                if (!this.clientService.checkIfClientRequestExists(request)) {
-                    this.clientService.addClientRequest(request, "doc_registered");
+        if (request.getDocuments() == null || request.getDocuments().isEmpty()) {
+            throw new AmqpRejectAndDontRequeueException("Empty request");
+        }
+
+        if (request.getCorrelationId() != null) {
+            this.tracingPolicy.setAttribute(serverSpan, "correlationId", request.getCorrelationId());
+            logger.info("Processing message (correlationId '{}')", request.getCorrelationId());
+        }
+
+        if (request.getBatchId() != null && !request.getBatchId().isEmpty()) {
+            this.tracingPolicy.setAttribute(serverSpan, "batchId", request.getBatchId());
+            logger.info("Processing batch '{}'", request.getBatchId());
+        }
+        serverSpan.setAttribute("numberOfDocument", request.getDocuments().size());
+        logger.info("Received total {} requests", request.getDocuments().size());
+
+        this.tracingPolicy.setCollection(serverSpan, "request_id", request.getDocuments(), Document::getRequestId);
+        for (Document document : request.getDocuments()) {
+            logger.info("Processing request '{}'", document.getRequestId());
+        }
+
+        if (!this.validateCommand(request.getCommand())) {
+            throw new AmqpRejectAndDontRequeueException("Incorrect command in the message: '" + request.getCommand() + "'");
+        }
+
+        serverSpan.setAttribute("command", request.getCommand());
+        return request;
+    }
+
+    /**
+     * Registers the client request, unless it does already exist
+     */
+    private void register(Message message, Request clientRequest, ExistingClientRequests existing, Span serverSpan) throws ServiceException {
+        if (existing.isEmpty()) {
+            this.clientService.addClientRequest(clientRequest, "doc_registered");
+            this.storePayloadIfRequired(message, clientRequest);
+        } else if (this.acceptPartialBatches && canAcceptPartially(clientRequest, existing)) {
+            // doc_create payload describes the whole batch and cannot be split, so only registrations are accepted partially
+            List<Document> accepted = clientRequest.getDocuments().stream()
+                    .filter(document -> !existing.isDuplicate(document.getRequestId()))
+                    .toList();
+            serverSpan.setAttribute("duplicates", existing.requestIds().size());
+            logger.warn("{} request(s) of the batch '{}' do already exist. Registering remaining {} request(s)",
+                    existing.requestIds().size(), clientRequest.getBatchId(), accepted.size());
+            this.clientService.addClientRequest(clientRequest, accepted, "doc_registered");
+        } else {
+            logger.error("Client request does already exist. Ignoring...");
+        }
+    }
+
+    /**
+     * @return the payload file written, null if the request has no payload
+     */
+    private File storePayloadIfRequired(Message message, Request clientRequest) throws ServiceException {
+        if (clientRequest.getCommand().equals("doc_create")) {
+            File outputFile = new File(new File(this.requestPath), String.format("GenworthMRBatch_%d.xml", clientRequest.getDocuments().get(0).getFileId()));
+            this.storePayload(outputFile, message.getBody());
+            return outputFile;
+        }
+        return null;
+    }
 
-                    if (request.getCommand().equals("doc_create")) {
-                        File outputFile = new File(new File(this.requestPath), String.format("GenworthMRBatch_%d.xml", request.getDocuments().get(0).getFileId()));
-                        this.storePayload(outputFile, request.getPayload());
+    /**
+     * @return true if two requests of the batch share a batch Id or a request Id
+     */
+    private static boolean hasOverlappingRequests(List<Request> requests) {
+        Set<String> ids = new HashSet<>();
+        for (Request request : requests) {
+            if (request.getBatchId() != null && !ids.add("batch:" + request.getBatchId().toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+            if (request.getDocuments() != null) {
+                for (Document document : request.getDocuments()) {
+                    if (document.getRequestId() != null && !ids.add("request:" + document.getRequestId().toLowerCase(Locale.ROOT))) {
+                        return true;
                     }
-                } else {
-                    logger.error("Client request does already exist. Ignoring...");
                 }
-            } catch (ServiceException e) {
-                // TODO delete created request
-                throw new AmqpRejectAndDontRequeueException(e.getMessage());
             }
-        } finally {
-            serverSpan.end();
         }
+        return false;
+    }
+
+    private static boolean canAcceptPartially(Request request, ExistingClientRequests existing) {
+        return request.getBatchId() != null
+                && !existing.batchExists()
+                && request.getCommand().equals("doc_register")
+                && existing.requestIds().size() < request.getDocuments().size();
     }
 
     private boolean validateCommand(String command) {
@@ -192,9 +429,8 @@ public class MessageProcessor {
             if (retryDetails.retries < maxRetries) {
                 builder.setHeader("x-death-count", retryDetails.retries + 1);
                 long delay = (this.initialDelay + (this.initialDelay * this.multiplier * (retryDetails.retries - 1))) * 1000L;
-                String queueName = String.format("%s-%s-%d-delay", retryDetails.originalExchange, retryDetails.originalRoutingKey, delay);
-                this.declareDelayQueue(queueName, retryDetails.originalExchange, retryDetails.originalRoutingKey, delay);
-                logger.info("Resending message to temporary TTL queue '{}'", queueName);
+                String queueName = this.retryTopologyManager.delayQueue(retryDetails.originalExchange, retryDetails.originalRoutingKey, delay);
+                logger.info("Resending message to retry delay queue '{}'", queueName);
                 logger.debug("Message body {}", new String(message.getBody()));
                 this.amqpTemplate.convertAndSend("", queueName, builder.build());
             } else {
@@ -205,19 +441,6 @@ public class MessageProcessor {
         }
     }
 
-    void declareDelayQueue(String queueName,
-                           String originalExchange,
-                           String originalRoutingKey,
-                           long ttl) {
-        this.amqpAdmin.declareQueue(QueueBuilder
-                .durable(queueName)
-                .autoDelete()
-                .withArgument("x-message-ttl", ttl)
-                .withArgument("x-dead-letter-exchange", originalExchange)
-                .withArgument("x-dead-letter-routing-key", originalRoutingKey)
-                .build());
-    }
-
     @RabbitListener(
             id = "parkingLotProcessor",
             queues = AMQP_PARKING_LOT)
@@ -244,25 +467,89 @@ public class MessageProcessor {
         this.amqpTemplate.convertAndSend(AMQP_DEAD_LETTER_EXCHANGE, AMQP_PARKING_LOT, payload);
     }
 
-    private void storePayload(File outputFile, String payload) throws ServiceException {
+    /**
+     * Copies the payload field of the message body to the output file. The body is only tokenized up to the payload,
+     * which is then unescaped from the body bytes straight to the file through a bounded buffer, without being
+     * materialized as a String. It is written to a temporary file renamed when complete, so the output file is never
+     * visible partially written. The temporary file is created like the output file used to be, honouring the umask.
+     */
+    private void storePayload(File outputFile, byte[] body) throws ServiceException {
         Span span = this.tracer
                 .spanBuilder("storePayload")
                 .startSpan();
 
         try(Scope scope = span.makeCurrent()) {
             span.setAttribute("outputFile", outputFile.getAbsolutePath());
-            span.setAttribute("payload", payload);
-            try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(outputFile))) {
-                bufferedWriter.write(payload);
+            this.tracingPolicy.setDigest(span, "message", body);
+            Path temporaryFile = null;
+            try (JsonParser parser = this.objectMapper.getFactory().createParser(body)) {
+                if (!seekPayload(parser)) {
+                    throw new ServiceException(String.format("Cannot write output file '%s': message has no payload", outputFile.getAbsolutePath()));
+                }
+
+                temporaryFile = outputFile.getParentFile().toPath().resolve(String.format("%s.%s.tmp", outputFile.getName(), UUID.randomUUID()));
+                try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    long offset = parser.currentTokenLocation().getByteOffset();
+                    if (offset >= 0 && offset < body.length && body[(int) offset] == '"') {
+                        JsonStringCopy.copy(body, (int) offset, channel);
+                    } else {
+                        // The parser does not report byte offsets, the payload is decoded by the parser instead,
+                        // which holds the whole payload in memory
+                        logger.warn("Cannot locate the payload in the message body, decoding it in memory to write output file '{}'", outputFile.getAbsolutePath());
+                        span.addEvent("Payload decoded in memory");
+                        Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+                        parser.getText(writer);
+                        writer.flush();
+                    }
+                    channel.force(false);
+                }
+                Files.move(temporaryFile, outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                temporaryFile = null;
+            } catch (ServiceException e) {
+                throw e;
             } catch (Exception e) {
                 throw new ServiceException(String.format("Cannot write output file '%s': %s", outputFile.getAbsolutePath(), e.getMessage()));
             }
             finally {
+                if (temporaryFile != null) {
+                    try {
+                        Files.deleteIfExists(temporaryFile);
+                    } catch (IOException e) {
+                        logger.warn("Cannot delete temporary file '{}': {}", temporaryFile, e.getMessage());
+                    }
+                }
                 span.end();
             }
         }
     }
 
+    /**
+     * Moves the parser to the value of the top level payload field
+     *
+     * @return true if the parser is on a string payload
+     */
+    private static boolean seekPayload(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (PAYLOAD_FIELD.equals(field)) {
+                return value == JsonToken.VALUE_STRING;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    /**
+     * Excludes the payload from the deserialized requests, it is streamed to the request file instead
+     */
+    @JsonIgnoreProperties(PAYLOAD_FIELD)
+    private abstract static class RequestWithoutPayload {
+    }
+
     private static class RetryDetails {
         long retries;
         String originalExchange;
@@ -285,7 +572,8 @@ public class MessageProcessor {
             }
 
             Map<String, Object> value = xDeath.get(0);
-            retries = (Long)value.get("count");
+            // Long when delivered by the broker, possibly another number type for replayed messages
+            retries = value.get("count") instanceof Number count ? count.longValue() : 0;
             originalExchange = (String)value.get("exchange");
             List<String> routingKeys = (List)value.get("routing-keys");
             if (originalExchange == null || routingKeys == null || routingKeys.size() == 0) {
@@ -0,0 +1,223 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the messages stored in the `amqp_outbox` table. Messages are read in id order and published in batches
+ * with publisher confirms, so the connection factory has to be configured with
+ * `spring.rabbitmq.publisher-confirm-type=simple`, the relay does not start otherwise. Rows are deleted only once the
+ * broker has confirmed the batch.
+ * <p>
+ * A session level advisory lock makes sure only one replica relays at a time. No transaction is open while the
+ * messages are published. If a message cannot be published, the remaining messages of the same exchange and routing
+ * key are left for the next run.
+ * <p>
+ * Delivery is at least once. The broker confirms a batch as a whole, so when a message of the batch is nacked or the
+ * confirms time out, the rows of the whole batch are kept and published again on the next run, including the
+ * messages the broker had already accepted. A replica stopping between the confirms and the delete has the same
+ * effect. Consumers must deduplicate on the message id, which is the id of the request status record.
+ * <p>
+ * Ordering: the messages written by one transaction, i.e. the responses of one status file, are published in the
+ * order they were written. Status files are committed concurrently, so the messages of different status files are
+ * published in id order, which may differ from the order their transactions committed. A message committed after
+ * messages with higher ids have been published is published on a later run.
+ */
+@Service
+public class OutboxRelay {
+    private static final Logger logger = LoggerFactory.getLogger(OutboxRelay.class);
+
+    private static final long RELAY_LOCK_ID = 0x6f7574626f78L;
+
+    private final DataSource dataSource;
+
+    private final RabbitTemplate rabbitTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final int batchSize;
+
+    private final long confirmTimeout;
+
+    private final Counter published;
+
+    private final Counter failed;
+
+    private final AtomicLong pending;
+
+    private record OutboxMessage(long id, String exchange, String routingKey, Message message) {
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param dataSource the data source used for database operations
+     * @param rabbitTemplate template used to publish the messages
+     * @param connectionFactory connection factory of the template, which must have simple publisher confirms enabled
+     * @param objectMapper object mapper
+     * @param registry meter registry
+     * @param batchSize maximum number of messages published per run
+     * @param confirmTimeout maximum time in milliseconds to wait for the publisher confirms
+     */
+    public OutboxRelay(DataSource dataSource,
+                       RabbitTemplate rabbitTemplate,
+                       ConnectionFactory connectionFactory,
+                       ObjectMapper objectMapper,
+                       MeterRegistry registry,
+                       @Value("${amqp.outbox.batch_size:500}") int batchSize,
+                       @Value("${amqp.outbox.confirm_timeout:10000}") long confirmTimeout) {
+        if (!connectionFactory.isSimplePublisherConfirms()) {
+            // Without confirms every batch would be published, fail to confirm and be published again on the next run
+            throw new IllegalStateException("The outbox relay requires publisher confirms, set spring.rabbitmq.publisher-confirm-type=simple");
+        }
+        this.dataSource = dataSource;
+        this.rabbitTemplate = rabbitTemplate;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.confirmTimeout = confirmTimeout;
+        this.pending = new AtomicLong(0);
+        this.published = Counter.builder("amqp.outbox.published")
+                .description("Number of outbox messages published")
+                .register(registry);
+        this.failed = Counter.builder("amqp.outbox.failed")
+                .description("Number of outbox messages that could not be published")
+                .register(registry);
+        Gauge.builder("amqp.outbox.pending", this.pending::get)
+                .description("Number of outbox messages read by the last relay run")
+                .register(registry);
+    }
+
+    /**
+     * Publishes the pending outbox messages. Repeats while full batches are published completely.
+     */
+    @Scheduled(fixedDelayString = "${amqp.outbox.relay_interval:1000}")
+    public void relay() {
+        try {
+            while (this.relayBatch() == this.batchSize) {
+                logger.debug("Outbox batch is full, continuing");
+            }
+        } catch (Throwable e) {
+            logger.error("Cannot relay outbox messages: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of messages published, 0 if some of them could not be published
+     */
+    private int relayBatch() throws SQLException {
+        try (Connection conn = this.dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            try (PreparedStatement st = conn.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+                st.setLong(1, RELAY_LOCK_ID);
+                try (ResultSet rs = st.executeQuery()) {
+                    if (!rs.next() || !rs.getBoolean(1)) {
+                        logger.debug("Outbox is relayed by another instance");
+                        return 0;
+                    }
+                }
+            }
+
+            try {
+                List<OutboxMessage> messages = this.readBatch(conn);
+                this.pending.set(messages.size());
+                if (messages.isEmpty()) {
+                    return 0;
+                }
+
+                List<Long> sent = this.publish(messages);
+                try (PreparedStatement st = conn.prepareStatement("DELETE FROM amqp_outbox WHERE id = ANY(?)")) {
+                    st.setArray(1, conn.createArrayOf("bigint", sent.toArray(new Long[0])));
+                    st.executeUpdate();
+                }
+                this.published.increment(sent.size());
+                this.failed.increment(messages.size() - sent.size());
+                return sent.size() == messages.size() ? messages.size() : 0;
+            } finally {
+                // The connection goes back to the pool, the session lock must not stay with it
+                try (PreparedStatement st = conn.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+                    st.setLong(1, RELAY_LOCK_ID);
+                    st.executeQuery().close();
+                }
+            }
+        }
+    }
+
+    private List<OutboxMessage> readBatch(Connection conn) throws SQLException {
+        List<OutboxMessage> messages = new ArrayList<>();
+        try (PreparedStatement st = conn.prepareStatement("""
+                SELECT id, exchange, routing_key, message_id, content_type, headers, body
+                FROM amqp_outbox ORDER BY id LIMIT ?
+            """)) {
+            st.setInt(1, this.batchSize);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    MessageBuilder mb = MessageBuilder.withBody(rs.getBytes(7));
+                    mb.setMessageId(rs.getString(4));
+                    mb.setContentType(rs.getString(5));
+                    if (rs.getString(6) != null) {
+                        try {
+                            Map<String, Object> headers = this.objectMapper.readValue(rs.getString(6), new TypeReference<>() {});
+                            headers.forEach(mb::setHeader);
+                        } catch (Exception e) {
+                            logger.warn("Cannot restore headers of outbox message {}: {}", rs.getLong(1), e.getMessage());
+                        }
+                    }
+                    messages.add(new OutboxMessage(rs.getLong(1), rs.getString(2), rs.getString(3), mb.build()));
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Publishes the messages on one channel and waits for the broker confirms.
+     *
+     * @return ids of the messages confirmed by the broker
+     */
+    private List<Long> publish(List<OutboxMessage> messages) {
+        return this.rabbitTemplate.invoke(operations -> {
+            List<Long> sent = new ArrayList<>();
+            Set<String> blocked = new HashSet<>();
+            for (OutboxMessage outboxMessage : messages) {
+                String key = outboxMessage.exchange() + "/" + outboxMessage.routingKey();
+                if (blocked.contains(key)) {
+                    continue;
+                }
+                try {
+                    operations.send(outboxMessage.exchange(), outboxMessage.routingKey(), outboxMessage.message());
+                    sent.add(outboxMessage.id());
+                } catch (AmqpException e) {
+                    logger.error("Cannot publish outbox message {} to '{}': {}", outboxMessage.id(), key, e.getMessage());
+                    blocked.add(key);
+                }
+            }
+            operations.waitForConfirmsOrDie(this.confirmTimeout);
+            return sent;
+        });
+    }
+}
@@ -0,0 +1,68 @@
+package axa.partners.clp.mrtdocumentbridge.controller;
+
+import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
+import axa.partners.clp.mrtdocumentbridge.service.ParkingLotReplayService;
+import axa.partners.clp.mrtdocumentbridge.service.ParkingLotReplayService.ReplayResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Actuator endpoint replaying the parked messages, exposed as `/actuator/parkinglot` once added to
+ * `management.endpoints.web.exposure.include`
+ */
+@Component
+@Endpoint(id = "parkinglot")
+public class ParkingLotEndpoint {
+    private static final Logger logger = LoggerFactory.getLogger(ParkingLotEndpoint.class);
+
+    private final ParkingLotReplayService replayService;
+
+    /**
+     * Default constructor
+     *
+     * @param replayService service replaying the parked messages
+     */
+    public ParkingLotEndpoint(ParkingLotReplayService replayService) {
+        this.replayService = replayService;
+    }
+
+    /**
+     * Replays the parked messages that have not been replayed yet
+     *
+     * @param from only messages parked at or after this ISO-8601 instant
+     * @param to only messages parked before this ISO-8601 instant
+     * @param routingKey only messages of this original routing key
+     * @param limit maximum number of messages to replay, 1000 by default
+     * @return outcome of the replay
+     * @throws ServiceException if the parameters are invalid or the replay fails
+     */
+    @WriteOperation
+    public ReplayResult replay(@Nullable String from,
+                               @Nullable String to,
+                               @Nullable String routingKey,
+                               @Nullable Integer limit) throws ServiceException {
+        Instant fromInstant;
+        Instant toInstant;
+        try {
+            fromInstant = from != null ? Instant.parse(from) : null;
+            toInstant = to != null ? Instant.parse(to) : null;
+        } catch (DateTimeParseException e) {
+            throw new ServiceException(String.format("Invalid replay time range: %s", e.getMessage()));
+        }
+
+        try {
+            return this.replayService.replay(fromInstant, toInstant, routingKey, limit != null ? limit : 1000);
+        } catch (SQLException | IllegalStateException e) {
+            logger.error("Cannot replay parked messages: {}", e.getMessage());
+            throw new ServiceException(String.format("Cannot replay parked messages: %s", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.util.AmqpHeaderCodec;
+import axa.partners.clp.mrtdocumentbridge.util.PayloadCompression;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the parked messages back to their original exchange and routing key. Messages are replayed in id order, in
+ * batches published with publisher confirms, and marked as replayed in the same transaction once confirmed, so an
+ * interrupted replay resumes where it stopped. Only a batch that was not confirmed can be sent again. Batches are
+ * locked with `SKIP LOCKED`, so replays started on several replicas share the work.
+ * <p>
+ * Replays require simple publisher confirms (`spring.rabbitmq.publisher-confirm-type=simple`), and are refused
+ * otherwise: without confirms every batch would be published, then rolled back and published again by the next replay.
+ * <p>
+ * The replay rate is limited, so the consumers recovering from an outage are not flooded again.
+ */
+@Service
+public class ParkingLotReplayService {
+    private static final Logger logger = LoggerFactory.getLogger(ParkingLotReplayService.class);
+
+    /**
+     * Outcome of a replay
+     *
+     * @param replayed number of messages sent back
+     * @param failed number of messages that could not be sent back, left parked
+     * @param lastId id of the last parked message read
+     */
+    public record ReplayResult(int replayed, int failed, long lastId) {
+    }
+
+    private record ParkedMessage(long id, String exchange, String routingKey, Message message) {
+    }
+
+    private final DataSource dataSource;
+
+    private final RabbitTemplate rabbitTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final int batchSize;
+
+    private final double maxRate;
+
+    private final long confirmTimeout;
+
+    private final boolean publisherConfirms;
+
+    private final Counter replayed;
+
+    private final Counter failed;
+
+    /**
+     * Default constructor
+     *
+     * @param dataSource the data source used for database operations
+     * @param rabbitTemplate template used to publish the messages
+     * @param connectionFactory connection factory of the template
+     * @param objectMapper object mapper
+     * @param registry meter registry
+     * @param batchSize number of messages replayed per batch
+     * @param maxRate maximum number of messages replayed per second
+     * @param confirmTimeout maximum time in milliseconds to wait for the publisher confirms
+     */
+    public ParkingLotReplayService(DataSource dataSource,
+                                   RabbitTemplate rabbitTemplate,
+                                   ConnectionFactory connectionFactory,
+                                   ObjectMapper objectMapper,
+                                   MeterRegistry registry,
+                                   @Value("${amqp.parking.replay.batch_size:100}") int batchSize,
+                                   @Value("${amqp.parking.replay.max_rate:200}") double maxRate,
+                                   @Value("${amqp.parking.replay.confirm_timeout:10000}") long confirmTimeout) {
+        this.dataSource = dataSource;
+        this.rabbitTemplate = rabbitTemplate;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.maxRate = maxRate;
+        this.confirmTimeout = confirmTimeout;
+        this.publisherConfirms = connectionFactory.isSimplePublisherConfirms();
+        if (!this.publisherConfirms) {
+            logger.warn("Publisher confirms are not enabled, parked messages cannot be replayed");
+        }
+        this.replayed = Counter.builder("amqp.parking.replayed")
+                .description("Number of parked messages sent back to their original exchange")
+                .register(registry);
+        this.failed = Counter.builder("amqp.parking.replay_failed")
+                .description("Number of parked messages that could not be sent back")
+                .register(registry);
+    }
+
+    /**
+     * Replays the parked messages that have not been replayed yet
+     *
+     * @param from only messages parked at or after this instant, all if null
+     * @param to only messages parked before this instant, all if null
+     * @param routingKey only messages of this original routing key, all if null
+     * @param limit maximum number of messages to replay
+     * @return outcome of the replay
+     * @throws SQLException if the parked messages cannot be read or marked
+     * @throws IllegalStateException if publisher confirms are not enabled
+     */
+    public ReplayResult replay(Instant from, Instant to, String routingKey, int limit) throws SQLException {
+        if (!this.publisherConfirms) {
+            throw new IllegalStateException("Replaying parked messages requires publisher confirms, set spring.rabbitmq.publisher-confirm-type=simple");
+        }
+        logger.info("Replaying up to {} parked message(s) (from {}, to {}, routing key {})", limit, from, to, routingKey);
+        long lastId = 0;
+        int replayedCount = 0;
+        int failedCount = 0;
+        while (replayedCount + failedCount < limit) {
+            long started = System.nanoTime();
+            int size = Math.min(this.batchSize, limit - replayedCount - failedCount);
+
+            List<ParkedMessage> messages;
+            List<Long> sent;
+            try (Connection conn = this.dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    messages = this.readBatch(conn, lastId, from, to, routingKey, size);
+                    if (messages.isEmpty()) {
+                        conn.commit();
+                        break;
+                    }
+
+                    sent = this.publish(messages);
+                    try (PreparedStatement st = conn.prepareStatement("UPDATE amqp_parking SET replayed_at = ? WHERE id = ANY(?)")) {
+                        st.setTimestamp(1, Timestamp.from(Instant.now()));
+                        st.setArray(2, conn.createArrayOf("bigint", sent.toArray(new Long[0])));
+                        st.executeUpdate();
+                    }
+                    conn.commit();
+                } catch (SQLException | RuntimeException e) {
+                    conn.rollback();
+                    throw e;
+                }
+            }
+
+            lastId = messages.get(messages.size() - 1).id();
+            replayedCount += sent.size();
+            failedCount += messages.size() - sent.size();
+            this.replayed.increment(sent.size());
+            this.failed.increment(messages.size() - sent.size());
+
+            if (messages.size() < size) {
+                break;
+            }
+            this.pace(messages.size(), System.nanoTime() - started);
+            if (Thread.currentThread().isInterrupted()) {
+                logger.warn("Replay interrupted, it can be resumed from parked message {}", lastId);
+                break;
+            }
+        }
+
+        logger.info("Replayed {} parked message(s), {} failed", replayedCount, failedCount);
+        return new ReplayResult(replayedCount, failedCount, lastId);
+    }
+
+    /**
+     * Reads the next batch after the last id, locking its rows. Messages that cannot be decoded are returned without
+     * message, they stay parked.
+     */
+    private List<ParkedMessage> readBatch(Connection conn, long lastId, Instant from, Instant to, String routingKey, int size) throws SQLException {
+        List<ParkedMessage> messages = new ArrayList<>();
+        Map<String, List<MessageBuilder>> legacyMessages = new HashMap<>();
+        List<MessageBuilder> builders = new ArrayList<>();
+        try (PreparedStatement st = conn.prepareStatement("""
+                SELECT id, original_exchange, original_routing_key, message_id, content_type, headers, payload_encoding, payload
+                FROM amqp_parking
+                WHERE replayed_at IS NULL
+                  AND id > ?
+                  AND (?::timestamp IS NULL OR created_at >= ?::timestamp)
+                  AND (?::timestamp IS NULL OR created_at < ?::timestamp)
+                  AND (?::text IS NULL OR original_routing_key = ?::text)
+                ORDER BY id
+                LIMIT ?
+                FOR UPDATE SKIP LOCKED
+            """)) {
+            st.setLong(1, lastId);
+            setTimestamp(st, 2, from);
+            setTimestamp(st, 3, from);
+            setTimestamp(st, 4, to);
+            setTimestamp(st, 5, to);
+            st.setString(6, routingKey);
+            st.setString(7, routingKey);
+            st.setInt(8, size);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    messages.add(new ParkedMessage(id, rs.getString(2), rs.getString(3), null));
+                    MessageBuilder mb;
+                    try {
+                        mb = MessageBuilder.withBody(PayloadCompression.decode(rs.getBytes(8), rs.getString(7)));
+                    } catch (Exception e) {
+                        logger.error("Cannot decode parked message {}, leaving it parked: {}", id, e.getMessage());
+                        builders.add(null);
+                        continue;
+                    }
+
+                    mb.setMessageId(rs.getString(4));
+                    mb.setContentType(rs.getString(5));
+                    if (rs.getString(6) != null) {
+                        try {
+                            AmqpHeaderCodec.decode(this.objectMapper, rs.getString(6)).forEach(mb::setHeader);
+                        } catch (Exception e) {
+                            logger.warn("Cannot restore headers of parked message {}: {}", id, e.getMessage());
+                        }
+                    } else if (rs.getString(4) != null) {
+                        // Parked before the headers were stored with the message
+                        legacyMessages.computeIfAbsent(rs.getString(4), messageId -> new ArrayList<>()).add(mb);
+                    }
+                    builders.add(mb);
+                }
+            }
+        }
+
+        if (!legacyMessages.isEmpty()) {
+            try (PreparedStatement st = conn.prepareStatement("SELECT message_id, header, value FROM amqp_parking_header WHERE message_id = ANY(?)")) {
+                st.setArray(1, conn.createArrayOf("varchar", legacyMessages.keySet().toArray(new String[0])));
+                try (ResultSet rs = st.executeQuery()) {
+                    while (rs.next()) {
+                        for (MessageBuilder mb : legacyMessages.get(rs.getString(1))) {
+                            mb.setHeader(rs.getString(2), rs.getString(3));
+                        }
+                    }
+                }
+            }
+        }
+
+        List<ParkedMessage> result = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            ParkedMessage message = messages.get(i);
+            MessageBuilder mb = builders.get(i);
+            result.add(new ParkedMessage(message.id(), message.exchange(), message.routingKey(), mb != null ? mb.build() : null));
+        }
+        return result;
+    }
+
+    /**
+     * Publishes the messages on one channel and waits for the broker confirms.
+     *
+     * @return ids of the messages confirmed by the broker
+     */
+    private List<Long> publish(List<ParkedMessage> messages) {
+        return this.rabbitTemplate.invoke(operations -> {
+            List<Long> sent = new ArrayList<>();
+            for (ParkedMessage parkedMessage : messages) {
+                if (parkedMessage.message() == null) {
+                    continue;
+                }
+                try {
+                    operations.send(parkedMessage.exchange(), parkedMessage.routingKey(), parkedMessage.message());
+                    sent.add(parkedMessage.id());
+                } catch (AmqpException e) {
+                    logger.error("Cannot replay parked message {} to '{}/{}': {}", parkedMessage.id(), parkedMessage.exchange(), parkedMessage.routingKey(), e.getMessage());
+                }
+            }
+            operations.waitForConfirmsOrDie(this.confirmTimeout);
+            return sent;
+        });
+    }
+
+    /**
+     * Waits long enough for the batch not to exceed the maximum rate
+     */
+    private void pace(int count, long elapsedNanos) {
+        if (this.maxRate <= 0) {
+            return;
+        }
+        long wait = (long) (count * 1_000_000_000d / this.maxRate) - elapsedNanos;
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void setTimestamp(PreparedStatement st, int index, Instant instant) throws SQLException {
+        if (instant != null) {
+            st.setTimestamp(index, Timestamp.from(instant));
+        } else {
+            st.setNull(index, Types.TIMESTAMP);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the message payloads stored in the database
+ */
+public final class PayloadCompression {
+
+    /**
+     * Encoding of the uncompressed payloads
+     */
+    public static final String IDENTITY = "identity";
+
+    /**
+     * Encoding of the gzip compressed payloads
+     */
+    public static final String GZIP = "gzip";
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * @param payload the payload
+     * @return gzip compressed payload
+     */
+    public static byte[] gzip(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, payload.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(payload);
+        } catch (IOException e) {
+            // Not thrown by in-memory streams
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param payload the stored payload
+     * @param encoding encoding of the stored payload
+     * @return uncompressed payload
+     * @throws IOException if the payload cannot be decompressed or the encoding is unknown
+     */
+    public static byte[] decode(byte[] payload, String encoding) throws IOException {
+        if (encoding == null || IDENTITY.equals(encoding)) {
+            return payload;
+        }
+        if (GZIP.equals(encoding)) {
+            try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+                return gzip.readAllBytes();
+            }
+        }
+        throw new IOException(String.format("Unknown payload encoding '%s'", encoding));
+    }
+}
@@ -0,0 +1,43 @@
+package axa.partners.clp.mrtdocumentbridge.config;
+
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Listener container factory of the batch consumers. Messages are delivered to the listener as a list of up to the
+ * batch size, or fewer if the receive timeout expires first, and acknowledged individually by the listener.
+ */
+@Configuration
+public class RabbitBatchListenerConfiguration {
+
+    public static final String BATCH_LISTENER_CONTAINER_FACTORY = "batchRabbitListenerContainerFactory";
+
+    /**
+     * @param configurer configurer applying the `spring.rabbitmq.listener.simple` properties
+     * @param connectionFactory connection factory
+     * @param batchSize maximum number of messages delivered to the listener at once
+     * @param receiveTimeout maximum time in milliseconds waited for the batch to fill up
+     * @return batch listener container factory
+     */
+    @Bean(BATCH_LISTENER_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory batchRabbitListenerContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                                   ConnectionFactory connectionFactory,
+                                                                                   @Value("${amqp.request.batch.size:100}") int batchSize,
+                                                                                   @Value("${amqp.request.batch.receive_timeout:1000}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        // The broker must be able to deliver a full batch before the first message is acknowledged
+        factory.setPrefetchCount(batchSize);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+}
@@ -0,0 +1,211 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the throughput of the request status append: the former select, insert and conditional update, against
+ * the single statement of {@link ClientService#INSERT_REQUEST_STATUS}. Run with `-Dbenchmark.statuses=` to change the
+ * number of statuses appended per variant.
+ */
+@Tag("benchmark")
+@Testcontainers(disabledWithoutDocker = true)
+class RequestStatusAppendBenchmarkTest {
+
+    @Container
+    private static final PostgreSQLContainer<?> postgres = new PostgreSQLContainer<>("postgres:16-alpine");
+
+    private static final int REQUESTS = 200;
+
+    private static final int STATUSES = Integer.getInteger("benchmark.statuses", 20_000);
+
+    private static Connection conn;
+
+    private final List<String> requestIds = new ArrayList<>();
+
+    @BeforeAll
+    static void connect() throws SQLException {
+        conn = DriverManager.getConnection(postgres.getJdbcUrl(), postgres.getUsername(), postgres.getPassword());
+        try (Statement st = conn.createStatement()) {
+            st.execute("""
+                    CREATE TABLE client_request (
+                        id UUID PRIMARY KEY,
+                        status VARCHAR(16),
+                        status_generated_at TIMESTAMP
+                    )
+                """);
+            st.execute("""
+                    CREATE TABLE request_status_history (
+                        id UUID PRIMARY KEY,
+                        status_generated_at TIMESTAMP NOT NULL,
+                        created_at TIMESTAMP NOT NULL,
+                        request_id UUID NOT NULL REFERENCES client_request (id),
+                        status VARCHAR(16),
+                        message TEXT,
+                        file_path TEXT
+                    )
+                """);
+            st.execute("CREATE INDEX request_status_history_request_id_idx ON request_status_history (request_id)");
+        }
+    }
+
+    @AfterAll
+    static void disconnect() throws SQLException {
+        conn.close();
+    }
+
+    @BeforeEach
+    void createRequests() throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("TRUNCATE request_status_history, client_request");
+        }
+        this.requestIds.clear();
+        try (PreparedStatement st = conn.prepareStatement("INSERT INTO client_request (id) VALUES (?)")) {
+            for (int i = 0; i < REQUESTS; i++) {
+                String requestId = UUID.randomUUID().toString();
+                this.requestIds.add(requestId);
+                st.setObject(1, requestId, Types.OTHER);
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+    }
+
+    @Test
+    void compareThroughput() throws SQLException {
+        // Warm up both variants, so the comparison does not measure the plan cache and the JIT
+        this.appendWithThreeStatements(1_000);
+        this.appendWithSingleStatement(1_000);
+        this.createRequests();
+
+        long threeStatements = this.appendWithThreeStatements(STATUSES);
+        List<String> latestBefore = this.latestStatus();
+        this.createRequests();
+        long singleStatement = this.appendWithSingleStatement(STATUSES);
+
+        System.out.printf("Request status append, %d statuses over %d requests%n", STATUSES, REQUESTS);
+        System.out.printf("  select + insert + update: %8.0f statuses/s%n", STATUSES * 1e9 / threeStatements);
+        System.out.printf("  single CTE statement:     %8.0f statuses/s%n", STATUSES * 1e9 / singleStatement);
+
+        // Both variants end with the same latest status on every request
+        assertEquals(latestBefore, this.latestStatus());
+    }
+
+    /**
+     * The append as it was before the single statement, one transaction per status
+     */
+    private long appendWithThreeStatements(int statuses) throws SQLException {
+        conn.setAutoCommit(false);
+        long start = System.nanoTime();
+        for (int i = 0; i < statuses; i++) {
+            String requestId = this.requestIds.get(i % REQUESTS);
+            LocalDateTime generatedAt = generatedAt(i);
+            LocalDateTime latest = null;
+            try (PreparedStatement st = conn.prepareStatement("""
+                    SELECT status_generated_at from request_status_history WHERE request_id = ?::uuid ORDER BY status_generated_at desc LIMIT 1
+                """)) {
+                st.setString(1, requestId);
+                try (ResultSet rs = st.executeQuery()) {
+                    if (rs.next()) {
+                        latest = rs.getTimestamp(1).toLocalDateTime();
+                    }
+                }
+            }
+            try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO request_status_history (id, status_generated_at, created_at, request_id, status, message)
+                    VALUES (?, ?, ?, ?, ?, ?)
+                """)) {
+                st.setObject(1, UUID.randomUUID().toString(), Types.OTHER);
+                st.setTimestamp(2, Timestamp.valueOf(generatedAt));
+                st.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+                st.setObject(4, requestId, Types.OTHER);
+                st.setString(5, status(i));
+                st.setString(6, null);
+                st.executeUpdate();
+            }
+            if (latest == null || latest.isBefore(generatedAt)) {
+                try (PreparedStatement st = conn.prepareStatement("UPDATE CLIENT_REQUEST set status = ? WHERE ID = ?::uuid")) {
+                    st.setString(1, status(i));
+                    st.setString(2, requestId);
+                    st.executeUpdate();
+                }
+            }
+            conn.commit();
+        }
+        long elapsed = System.nanoTime() - start;
+        conn.setAutoCommit(true);
+        return elapsed;
+    }
+
+    /**
+     * The append with the statement used by {@link ClientService}, one transaction per status
+     */
+    private long appendWithSingleStatement(int statuses) throws SQLException {
+        conn.setAutoCommit(false);
+        long start = System.nanoTime();
+        for (int i = 0; i < statuses; i++) {
+            try (PreparedStatement st = conn.prepareStatement(ClientService.INSERT_REQUEST_STATUS)) {
+                st.setObject(1, UUID.randomUUID().toString(), Types.OTHER);
+                st.setTimestamp(2, Timestamp.valueOf(generatedAt(i)));
+                st.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+                st.setObject(4, this.requestIds.get(i % REQUESTS), Types.OTHER);
+                st.setString(5, status(i));
+                st.setString(6, null);
+                st.executeUpdate();
+            }
+            conn.commit();
+        }
+        long elapsed = System.nanoTime() - start;
+        conn.setAutoCommit(true);
+        return elapsed;
+    }
+
+    /**
+     * @return the latest status of the requests, in creation order
+     */
+    private List<String> latestStatus() throws SQLException {
+        List<String> statuses = new ArrayList<>(REQUESTS);
+        try (PreparedStatement st = conn.prepareStatement("SELECT status FROM client_request WHERE id = ?::uuid")) {
+            for (String requestId : this.requestIds) {
+                st.setString(1, requestId);
+                try (ResultSet rs = st.executeQuery()) {
+                    statuses.add(rs.next() ? rs.getString(1) : null);
+                }
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Statuses mostly arrive in order, every seventh one is older than the previous status of its request
+     */
+    private static LocalDateTime generatedAt(int i) {
+        LocalDateTime base = LocalDateTime.of(2024, 1, 1, 0, 0);
+        return i % 7 == 6 ? base.plusSeconds(i - 3L * REQUESTS) : base.plusSeconds(i);
+    }
+
+    private static String status(int i) {
+        return "S" + (i % 7);
+    }
+}
@@ -0,0 +1,97 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueBuilder;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delay queues of the message retries. Every exchange and routing key gets a fixed set of durable delay queues, one
+ * per delay tier, whose messages are dead-lettered back to the exchange and routing key once the tier delay has
+ * passed. The queues of an exchange and routing key are all declared on its first retry and remembered, so a retry
+ * costs a single publish. Declarations are forgotten when the connection to the broker is re-established, in case
+ * the broker has lost them.
+ */
+@Service
+public class RetryTopologyManager {
+    private static final Logger logger = LoggerFactory.getLogger(RetryTopologyManager.class);
+
+    private final AmqpAdmin amqpAdmin;
+
+    private final long[] delayTiers;
+
+    private final Map<String, List<String>> delayQueues;
+
+    /**
+     * Default constructor
+     *
+     * @param amqpAdmin AMQP administration
+     * @param connectionFactory connection factory, watched to forget the declarations when the broker reconnects
+     * @param registry meter registry
+     * @param delayTiers delays of the delay queues in milliseconds
+     */
+    public RetryTopologyManager(AmqpAdmin amqpAdmin,
+                                ConnectionFactory connectionFactory,
+                                MeterRegistry registry,
+                                @Value("${rabbitmq.dlq.delay_tiers:2000,4000,8000,16000,32000,64000,128000,256000}") long[] delayTiers) {
+        this.amqpAdmin = amqpAdmin;
+        this.delayTiers = Arrays.stream(delayTiers).filter(delay -> delay > 0).sorted().distinct().toArray();
+        if (this.delayTiers.length == 0) {
+            throw new IllegalArgumentException("At least one positive delay tier is required");
+        }
+        this.delayQueues = new ConcurrentHashMap<>();
+
+        connectionFactory.addConnectionListener(connection -> this.delayQueues.clear());
+
+        Gauge.builder("rabbitmq.dlq.delay_queues", this.delayQueues, queues -> queues.size() * (double) this.delayTiers.length)
+                .description("Number of retry delay queues declared by this instance")
+                .register(registry);
+        logger.info("Retry delay tiers: {} ms", Arrays.toString(this.delayTiers));
+    }
+
+    /**
+     * Returns the delay queue of the smallest tier at least as long as the delay, or of the longest tier if the
+     * delay exceeds all of them. The delay queues of the exchange and routing key are declared if required.
+     *
+     * @param exchange exchange the message goes back to
+     * @param routingKey routing key the message goes back with
+     * @param delay requested delay in milliseconds
+     * @return name of the delay queue
+     */
+    public String delayQueue(String exchange, String routingKey, long delay) {
+        List<String> queues = this.delayQueues.computeIfAbsent(exchange + "\u0000" + routingKey, key -> this.declare(exchange, routingKey));
+        for (int tier = 0; tier < this.delayTiers.length; tier++) {
+            if (this.delayTiers[tier] >= delay) {
+                return queues.get(tier);
+            }
+        }
+        return queues.get(this.delayTiers.length - 1);
+    }
+
+    private List<String> declare(String exchange, String routingKey) {
+        List<String> queues = new ArrayList<>(this.delayTiers.length);
+        for (long delay : this.delayTiers) {
+            String queueName = String.format("%s-%s-retry-%d", exchange, routingKey, delay);
+            this.amqpAdmin.declareQueue(QueueBuilder
+                    .durable(queueName)
+                    .withArgument("x-message-ttl", delay)
+                    .withArgument("x-dead-letter-exchange", exchange)
+                    .withArgument("x-dead-letter-routing-key", routingKey)
+                    .build());
+            queues.add(queueName);
+        }
+        logger.info("Declared {} retry delay queue(s) for exchange '{}' and routing key '{}'", queues.size(), exchange, routingKey);
+        return List.copyOf(queues);
+    }
+}
@@ -0,0 +1,124 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.data.harmonie.StatusDocument;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of parsed status documents. Used for the printed ("PP") status files that stay in the input directory
+ * until all their PDF files have arrived, so they are not parsed again on every run. Entries are keyed by file name,
+ * size and modification time, so a file that has been replaced is parsed again. The cache is bounded by the total
+ * size of the cached files.
+ */
+@Service
+public class StatusDocumentCache {
+
+    private record Key(String path, long size, long lastModified) {
+    }
+
+    private final Map<Key, StatusDocument> entries;
+
+    private final long maxBytes;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private long cachedBytes;
+
+    /**
+     * Default constructor
+     *
+     * @param registry meter registry
+     * @param maxBytes maximum total size of the status files whose documents are cached
+     */
+    public StatusDocumentCache(MeterRegistry registry,
+                               @Value("${harmonie.status_files.cache.max_bytes:67108864}") long maxBytes) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.maxBytes = maxBytes;
+        this.hits = Counter.builder("status_document.cache.requests")
+                .description("Status document cache lookups")
+                .tag("result", "hit")
+                .register(registry);
+        this.misses = Counter.builder("status_document.cache.requests")
+                .description("Status document cache lookups")
+                .tag("result", "miss")
+                .register(registry);
+        Gauge.builder("status_document.cache.bytes", this, StatusDocumentCache::cachedBytes)
+                .description("Total size of the status files whose documents are cached")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * @param statusFile the status file
+     * @return the cached document, or null if the file has not been cached or has changed since
+     */
+    public synchronized StatusDocument get(File statusFile) {
+        StatusDocument document = this.entries.get(key(statusFile));
+        if (document == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return document;
+    }
+
+    /**
+     * Caches the parsed document of the status file. Least recently used documents are evicted to stay within the
+     * size bound. Files larger than the bound are not cached.
+     *
+     * @param statusFile the status file
+     * @param document the parsed document
+     */
+    public synchronized void put(File statusFile, StatusDocument document) {
+        Key key = key(statusFile);
+        if (key.size() > this.maxBytes) {
+            return;
+        }
+
+        this.invalidate(statusFile);
+        this.entries.put(key, document);
+        this.cachedBytes += key.size();
+
+        Iterator<Key> iterator = this.entries.keySet().iterator();
+        while (this.cachedBytes > this.maxBytes && iterator.hasNext()) {
+            Key eldest = iterator.next();
+            iterator.remove();
+            this.cachedBytes -= eldest.size();
+        }
+    }
+
+    /**
+     * Removes any cached document of the status file
+     *
+     * @param statusFile the status file
+     */
+    public synchronized void invalidate(File statusFile) {
+        String path = statusFile.getAbsolutePath();
+        Iterator<Key> iterator = this.entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            Key cached = iterator.next();
+            if (cached.path().equals(path)) {
+                iterator.remove();
+                this.cachedBytes -= cached.size();
+            }
+        }
+    }
+
+    private synchronized double cachedBytes() {
+        return this.cachedBytes;
+    }
+
+    private static Key key(File statusFile) {
+        return new Key(statusFile.getAbsolutePath(), statusFile.length(), statusFile.lastModified());
+    }
+}
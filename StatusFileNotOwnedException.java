@@ -0,0 +1,12 @@
+package axa.partners.clp.mrtdocumentbridge.exception;
+
+/**
+ * Thrown when the partition of a status file is no longer owned by this replica, for example because its lock
+ * connection has been lost. The file is left in the input directory for the replica now owning it.
+ */
+public class StatusFileNotOwnedException extends ServiceException {
+
+    public StatusFileNotOwnedException(String message) {
+        super(message);
+    }
+}
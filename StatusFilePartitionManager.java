@@ -0,0 +1,387 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import axa.partners.clp.mrtdocumentbridge.exception.StatusFileNotOwnedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Partitions the input directory across the replicas. Status file names are hashed into a fixed number of
+ * partitions, and every replica only processes the files of the partitions it owns.
+ * <p>
+ * Partitions are owned through session level PostgreSQL advisory locks held on a dedicated connection, so a
+ * partition is never owned by two replicas, and the partitions of a replica that dies are freed with its connection.
+ * Replicas record a heartbeat in the `status_file_replica` table. On every heartbeat a replica counts the live
+ * replicas, releases the partitions it owns above its fair share and tries to take free partitions up to it, so the
+ * partitions are rebalanced when replicas join or leave.
+ * <p>
+ * Files are processed between {@link #begin(File)} and {@link #end(File)}. A partition released by a rebalance is
+ * drained first: no new file of the partition is started, and its lock is only released once the files in flight
+ * have been processed, so the replica taking it over never processes the same files.
+ * <p>
+ * Advisory locks are lost silently with the session of the lock connection, e.g. on a database failover. On every
+ * heartbeat the locks actually held by the session are read back from `pg_locks` and the owned partitions rebuilt from
+ * them. The ownership is only trusted for a heartbeat interval after the last successful check, so a replica whose
+ * lock connection is dead stops committing files once its ownership can no longer be confirmed.
+ */
+@Service
+public class StatusFilePartitionManager implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(StatusFilePartitionManager.class);
+
+    /**
+     * First key of the advisory locks, the partition number being the second one
+     */
+    private static final int LOCK_NAMESPACE = 0x68726d6e;
+
+    private final DataSource dataSource;
+
+    private final boolean enabled;
+
+    private final int partitions;
+
+    private final Duration replicaTimeout;
+
+    private final long heartbeatInterval;
+
+    private final String instanceId;
+
+    private final Set<Integer> ownedPartitions;
+
+    /**
+     * Partitions released by a rebalance whose lock is still held until their files in flight have been processed
+     */
+    private final Set<Integer> drainingPartitions;
+
+    private final ConcurrentMap<Integer, AtomicInteger> inFlightFiles;
+
+    private final AtomicInteger liveReplicas;
+
+    private Connection lockConnection;
+
+    /**
+     * {@link System#nanoTime()} of the last successful check of the held locks, 0 if they have not been checked
+     */
+    private volatile long locksVerifiedAt;
+
+    /**
+     * Default constructor
+     *
+     * @param dataSource the data source used for database operations
+     * @param registry meter registry
+     * @param enabled true to partition the input directory across the replicas
+     * @param partitions number of partitions
+     * @param replicaTimeout time after which a replica without heartbeat is considered gone
+     * @param heartbeatInterval time in milliseconds between two heartbeats
+     * @param hostname host name, used to identify the replica
+     */
+    public StatusFilePartitionManager(DataSource dataSource,
+                                      MeterRegistry registry,
+                                      @Value("${harmonie.status_files.sharding.enabled:false}") boolean enabled,
+                                      @Value("${harmonie.status_files.sharding.partitions:32}") int partitions,
+                                      @Value("${harmonie.status_files.sharding.replica_timeout:PT30S}") Duration replicaTimeout,
+                                      @Value("${harmonie.status_files.sharding.heartbeat_interval:10000}") long heartbeatInterval,
+                                      @Value("${HOSTNAME:}") String hostname) {
+        this.dataSource = dataSource;
+        this.enabled = enabled;
+        this.partitions = partitions;
+        this.replicaTimeout = replicaTimeout;
+        this.heartbeatInterval = heartbeatInterval;
+        this.instanceId = (hostname.isBlank() ? "mrt-document-bridge" : hostname) + "/" + UUID.randomUUID();
+        this.ownedPartitions = ConcurrentHashMap.newKeySet();
+        this.drainingPartitions = ConcurrentHashMap.newKeySet();
+        this.inFlightFiles = new ConcurrentHashMap<>();
+        this.liveReplicas = new AtomicInteger(0);
+
+        Gauge.builder("harmonie.status_files.sharding.owned_partitions", this.ownedPartitions::size)
+                .description("Number of input directory partitions owned by this replica")
+                .register(registry);
+        Gauge.builder("harmonie.status_files.sharding.replicas", this.liveReplicas::get)
+                .description("Number of live replicas sharing the input directory")
+                .register(registry);
+
+        if (enabled) {
+            logger.info("Input directory is partitioned in {} partition(s), replica '{}'", partitions, this.instanceId);
+        }
+    }
+
+    /**
+     * @param statusFile the status file
+     * @return true if the status file belongs to a partition owned by this replica, always true when the input
+     * directory is not partitioned
+     */
+    public boolean owns(File statusFile) {
+        return !this.enabled || this.ownedPartitions.contains(this.partition(statusFile.getName()));
+    }
+
+    /**
+     * Starts processing a status file. Must be followed by {@link #end(File)} if true is returned.
+     *
+     * @param statusFile the status file
+     * @return true if the status file belongs to a partition owned by this replica, which cannot be released until
+     * {@link #end(File)} is called, always true when the input directory is not partitioned
+     */
+    public boolean begin(File statusFile) {
+        if (!this.enabled) {
+            return true;
+        }
+        if (!this.locksVerified()) {
+            return false;
+        }
+
+        int partition = this.partition(statusFile.getName());
+        AtomicInteger inFlight = this.inFlightFiles.computeIfAbsent(partition, p -> new AtomicInteger());
+        // Counted before checking the ownership, so a rebalance removing the partition in the meantime sees the file
+        inFlight.incrementAndGet();
+        if (this.ownedPartitions.contains(partition)) {
+            return true;
+        }
+        inFlight.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Ends processing a status file started with {@link #begin(File)}
+     *
+     * @param statusFile the status file
+     */
+    public void end(File statusFile) {
+        if (!this.enabled) {
+            return;
+        }
+
+        AtomicInteger inFlight = this.inFlightFiles.get(this.partition(statusFile.getName()));
+        if (inFlight != null) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Checks that the partition lock of a status file being processed is still held, before its changes are committed.
+     * The check fails as well when the held locks have not been verified in the database recently.
+     *
+     * @param statusFile the status file
+     * @throws StatusFileNotOwnedException if the partition lock has been lost or cannot be trusted anymore
+     */
+    public void checkOwnership(File statusFile) throws StatusFileNotOwnedException {
+        if (!this.enabled) {
+            return;
+        }
+
+        int partition = this.partition(statusFile.getName());
+        if (!this.locksVerified()) {
+            logger.warn("Partition locks have not been verified recently, status file '{}' is not committed", statusFile.getName());
+            throw new StatusFileNotOwnedException(String.format("Partition locks have not been verified recently, status file '%s' is not committed", statusFile.getName()));
+        }
+        if (!this.ownedPartitions.contains(partition) && !this.drainingPartitions.contains(partition)) {
+            logger.warn("Partition {} of status file '{}' is no longer owned by this replica", partition, statusFile.getName());
+            throw new StatusFileNotOwnedException(String.format("Partition %d of status file '%s' is no longer owned by this replica", partition, statusFile.getName()));
+        }
+    }
+
+    /**
+     * Records the heartbeat of this replica and rebalances the partitions
+     */
+    @Scheduled(fixedDelayString = "${harmonie.status_files.sharding.heartbeat_interval:10000}")
+    public synchronized void heartbeat() {
+        if (!this.enabled) {
+            return;
+        }
+
+        try {
+            int replicas = this.recordHeartbeat();
+            this.liveReplicas.set(replicas);
+            this.rebalance((this.partitions + replicas - 1) / replicas);
+        } catch (SQLException e) {
+            logger.error("Cannot rebalance the input directory partitions: {}", e.getMessage());
+            this.dropLockConnection();
+        }
+    }
+
+    /**
+     * @return true if the held locks have been verified less than a heartbeat interval ago. Half an interval is added
+     * for the time a heartbeat takes to reach the verification, the heartbeats being scheduled with a fixed delay
+     */
+    private boolean locksVerified() {
+        long verifiedAt = this.locksVerifiedAt;
+        return verifiedAt != 0 && System.nanoTime() - verifiedAt < TimeUnit.MILLISECONDS.toNanos(this.heartbeatInterval * 3 / 2);
+    }
+
+    /**
+     * Reads the advisory locks held by the session of the lock connection, and forgets the partitions whose lock has
+     * been lost. A dead connection fails the query, so the locks are never assumed held without a round trip.
+     */
+    private void verifyLocks() throws SQLException {
+        Set<Integer> held = new HashSet<>();
+        try (PreparedStatement st = this.lockConnection.prepareStatement("""
+                SELECT objid::bigint FROM pg_locks
+                WHERE locktype = 'advisory' AND pid = pg_backend_pid() AND granted
+                  AND classid::bigint = ? AND objsubid = 2
+            """)) {
+            st.setQueryTimeout((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(this.heartbeatInterval)));
+            st.setLong(1, LOCK_NAMESPACE);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    held.add((int) rs.getLong(1));
+                }
+            }
+        }
+
+        for (Set<Integer> partitionSet : List.of(this.ownedPartitions, this.drainingPartitions)) {
+            Iterator<Integer> iterator = partitionSet.iterator();
+            while (iterator.hasNext()) {
+                int partition = iterator.next();
+                if (!held.contains(partition)) {
+                    logger.warn("Lock of input directory partition {} has been lost", partition);
+                    iterator.remove();
+                }
+            }
+        }
+        for (int partition : held) {
+            if (!this.ownedPartitions.contains(partition) && !this.drainingPartitions.contains(partition)) {
+                // Held but not recorded, e.g. after a failed unlock: owned again, released by the rebalance if needed
+                this.ownedPartitions.add(partition);
+            }
+        }
+        this.locksVerifiedAt = System.nanoTime();
+    }
+
+    private int recordHeartbeat() throws SQLException {
+        try (Connection conn = this.dataSource.getConnection()) {
+            try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO status_file_replica (instance_id, heartbeat_at) VALUES (?, now())
+                    ON CONFLICT (instance_id) DO UPDATE SET heartbeat_at = excluded.heartbeat_at
+                """)) {
+                st.setString(1, this.instanceId);
+                st.executeUpdate();
+            }
+
+            try (PreparedStatement st = conn.prepareStatement("""
+                    DELETE FROM status_file_replica WHERE heartbeat_at < now() - ? * interval '1 millisecond'
+                """)) {
+                st.setLong(1, this.replicaTimeout.toMillis());
+                st.executeUpdate();
+            }
+
+            try (PreparedStatement st = conn.prepareStatement("SELECT count(*) FROM status_file_replica");
+                 ResultSet rs = st.executeQuery()) {
+                return rs.next() ? Math.max(1, rs.getInt(1)) : 1;
+            }
+        }
+    }
+
+    private void rebalance(int target) throws SQLException {
+        if (this.lockConnection == null || this.lockConnection.isClosed()) {
+            // Locks of a previous connection are gone with it
+            this.ownedPartitions.clear();
+            this.drainingPartitions.clear();
+            this.lockConnection = this.dataSource.getConnection();
+            this.lockConnection.setAutoCommit(true);
+        }
+        this.verifyLocks();
+
+        // Partitions above the fair share stop taking new files, and are unlocked once their files in flight are done
+        Iterator<Integer> owned = this.ownedPartitions.iterator();
+        while (this.ownedPartitions.size() + this.drainingPartitions.size() > target && owned.hasNext()) {
+            int partition = owned.next();
+            this.drainingPartitions.add(partition);
+            owned.remove();
+            logger.info("Draining input directory partition {}", partition);
+        }
+
+        Iterator<Integer> draining = this.drainingPartitions.iterator();
+        while (draining.hasNext()) {
+            int partition = draining.next();
+            AtomicInteger inFlight = this.inFlightFiles.get(partition);
+            if (inFlight != null && inFlight.get() > 0) {
+                logger.debug("Input directory partition {} still has {} file(s) in flight", partition, inFlight.get());
+                continue;
+            }
+            try (PreparedStatement st = this.lockConnection.prepareStatement("SELECT pg_advisory_unlock(?, ?)")) {
+                st.setInt(1, LOCK_NAMESPACE);
+                st.setInt(2, partition);
+                st.executeQuery().close();
+            }
+            draining.remove();
+            logger.info("Released input directory partition {}", partition);
+        }
+
+        // Replicas start looking for free partitions at different positions, so they do not compete for the same ones
+        int offset = Math.floorMod(this.instanceId.hashCode(), this.partitions);
+        for (int i = 0; i < this.partitions && this.ownedPartitions.size() + this.drainingPartitions.size() < target; i++) {
+            int partition = (offset + i) % this.partitions;
+            if (this.ownedPartitions.contains(partition) || this.drainingPartitions.contains(partition)) {
+                continue;
+            }
+            try (PreparedStatement st = this.lockConnection.prepareStatement("SELECT pg_try_advisory_lock(?, ?)")) {
+                st.setInt(1, LOCK_NAMESPACE);
+                st.setInt(2, partition);
+                try (ResultSet rs = st.executeQuery()) {
+                    if (rs.next() && rs.getBoolean(1)) {
+                        this.ownedPartitions.add(partition);
+                        logger.info("Acquired input directory partition {}", partition);
+                    }
+                }
+            }
+        }
+    }
+
+    private int partition(String fileName) {
+        return Math.floorMod(fileName.hashCode(), this.partitions);
+    }
+
+    private void dropLockConnection() {
+        this.locksVerifiedAt = 0;
+        this.ownedPartitions.clear();
+        this.drainingPartitions.clear();
+        if (this.lockConnection != null) {
+            try {
+                // The connection goes back to the pool, the session locks must not stay with it
+                try (PreparedStatement st = this.lockConnection.prepareStatement("SELECT pg_advisory_unlock_all()")) {
+                    st.executeQuery().close();
+                }
+                this.lockConnection.close();
+            } catch (SQLException e) {
+                logger.warn("Cannot close the partition lock connection: {}", e.getMessage());
+            }
+            this.lockConnection = null;
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (!this.enabled) {
+            return;
+        }
+
+        this.dropLockConnection();
+        try (Connection conn = this.dataSource.getConnection();
+             PreparedStatement st = conn.prepareStatement("DELETE FROM status_file_replica WHERE instance_id = ?")) {
+            st.setString(1, this.instanceId);
+            st.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn("Cannot remove the replica heartbeat: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package axa.partners.clp.mrtdocumentbridge.task;
+
+import axa.partners.clp.mrtdocumentbridge.service.FileHandlingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the input directory and hands new status files to {@link HarmonieStatusFilesHandlerJobScheduler} as soon
+ * as they are completely written. A file is considered complete when its size and modification time have not changed
+ * for the configured stability period. Producers that write to a temporary name and rename the file to `.xml` once
+ * done can set the stability period to zero.
+ * <p>
+ * The scheduled job keeps running as a reconciliation sweep for files whose events have been missed.
+ * <p>
+ * The watcher threads are started once the application context has been refreshed and stopped on shutdown.
+ */
+@Component
+@ConditionalOnProperty(name = "harmonie.status_files.watch.enabled", havingValue = "true")
+public class StatusFileWatcher implements SmartLifecycle {
+    private static final Logger logger = LoggerFactory.getLogger(StatusFileWatcher.class);
+
+    private record Observation(long size, long lastModified, long observedAt) {
+    }
+
+    private final HarmonieStatusFilesHandlerJobScheduler scheduler;
+
+    private final Path inputPath;
+
+    private final long stableAfterMillis;
+
+    private final Map<Path, Observation> candidates;
+
+    private WatchService watchService;
+
+    private Thread watcher;
+
+    private ScheduledExecutorService stabilityChecker;
+
+    /**
+     * Default constructor
+     *
+     * @param scheduler status file scheduler processing the files
+     * @param fileHandlingService file handling service
+     * @param stableAfter time the file size and modification time must stay unchanged before the file is processed
+     */
+    public StatusFileWatcher(HarmonieStatusFilesHandlerJobScheduler scheduler,
+                             FileHandlingService fileHandlingService,
+                             @Value("${harmonie.status_files.watch.stable_after:PT2S}") Duration stableAfter) {
+        this.scheduler = scheduler;
+        this.inputPath = Paths.get(fileHandlingService.path("input"));
+        this.stableAfterMillis = stableAfter.toMillis();
+        this.candidates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts watching the input directory
+     *
+     * @throws UncheckedIOException if the input directory cannot be watched
+     */
+    @Override
+    public synchronized void start() {
+        if (this.watcher != null) {
+            return;
+        }
+
+        try {
+            this.watchService = this.inputPath.getFileSystem().newWatchService();
+            this.inputPath.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.error("Cannot watch input directory '{}': {}", this.inputPath, e.getMessage());
+            throw new UncheckedIOException(String.format("Cannot watch input directory '%s'", this.inputPath), e);
+        }
+
+        WatchService service = this.watchService;
+        this.watcher = new Thread(() -> this.watch(service), "status-file-watcher");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+
+        long checkInterval = Math.max(100, this.stableAfterMillis / 2);
+        this.stabilityChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "status-file-stability");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.stabilityChecker.scheduleWithFixedDelay(this::submitStableFiles, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        logger.info("Watching '{}' for new status files, stable after {} ms", this.inputPath, this.stableAfterMillis);
+    }
+
+    private void watch(WatchService watchService) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.warn("Input directory events have been lost. Files are picked up by the next scheduled run");
+                        continue;
+                    }
+
+                    Path path = this.inputPath.resolve((Path) event.context());
+                    if (isStatusFile(path)) {
+                        this.candidates.putIfAbsent(path, new Observation(-1, -1, System.currentTimeMillis()));
+                    }
+                }
+                if (!key.reset()) {
+                    logger.error("Input directory '{}' cannot be watched anymore", this.inputPath);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Status file watcher has been stopped");
+        }
+    }
+
+    private void submitStableFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Observation>> iterator = this.candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Observation> candidate = iterator.next();
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(candidate.getKey(), BasicFileAttributes.class);
+                Observation previous = candidate.getValue();
+                long size = attributes.size();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                if (size != previous.size() || lastModified != previous.lastModified()) {
+                    candidate.setValue(new Observation(size, lastModified, now));
+                    if (this.stableAfterMillis > 0) {
+                        continue;
+                    }
+                } else if (now - previous.observedAt() < this.stableAfterMillis) {
+                    continue;
+                }
+
+                iterator.remove();
+                logger.debug("Status file '{}' is ready for processing", candidate.getKey());
+                this.scheduler.submitWatchedFile(candidate.getKey().toFile());
+            } catch (IOException e) {
+                // Moved away, e.g. processed by the scheduled run
+                iterator.remove();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                iterator.remove();
+                logger.error(String.format("Cannot submit status file '%s'", candidate.getKey()), e);
+            }
+        }
+    }
+
+    private static boolean isStatusFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.regionMatches(true, name.length() - 4, ".xml", 0, 4);
+    }
+
+    /**
+     * Stops watching the input directory, the files not submitted yet are picked up by the scheduled job
+     */
+    @Override
+    public synchronized void stop() {
+        if (this.watcher == null) {
+            return;
+        }
+
+        this.stabilityChecker.shutdownNow();
+        this.watcher.interrupt();
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close the input directory watch service: {}", e.getMessage());
+        }
+        this.candidates.clear();
+        this.watcher = null;
+        this.stabilityChecker = null;
+        this.watchService = null;
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return this.watcher != null;
+    }
+}
@@ -0,0 +1,212 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.data.harmonie.Request;
+import axa.partners.clp.mrtdocumentbridge.data.harmonie.StatusDocument;
+import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Unmarshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.EventReaderDelegate;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * StAX based reader for large Harmonie status files. Instead of building the whole {@link StatusDocument} object
+ * graph, the document header is read with the request entries skipped, and the request entries are then streamed to
+ * the caller in fixed-size chunks. Memory used per file depends on the chunk size, not on the file size.
+ */
+@Service
+public class StreamingStatusDocumentReader {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingStatusDocumentReader.class);
+
+    /**
+     * Receives a chunk of request entries
+     */
+    @FunctionalInterface
+    public interface RequestChunkConsumer {
+        void accept(List<Request> requests) throws ServiceException;
+    }
+
+    private final boolean enabled;
+
+    private final long minSize;
+
+    private final int chunkSize;
+
+    private final String requestElement;
+
+    private final XMLInputFactory inputFactory;
+
+    private final JAXBContext context;
+
+    /**
+     * Default constructor
+     *
+     * @param enabled true to stream the status files larger than the minimum size
+     * @param minSize status file size in bytes from which the file is streamed
+     * @param chunkSize number of request entries passed to the consumer at once
+     * @param requestElement local name of the request entry element
+     * @throws JAXBException if the JAXB context cannot be created
+     */
+    public StreamingStatusDocumentReader(@Value("${harmonie.status_files.streaming.enabled:false}") boolean enabled,
+                                         @Value("${harmonie.status_files.streaming.min_size:10485760}") long minSize,
+                                         @Value("${harmonie.status_files.streaming.chunk_size:500}") int chunkSize,
+                                         @Value("${harmonie.status_files.streaming.request_element:Request}") String requestElement) throws JAXBException {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.chunkSize = chunkSize;
+        this.requestElement = requestElement;
+        this.inputFactory = XMLInputFactory.newFactory();
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.context = JAXBContext.newInstance(StatusDocument.class, Request.class);
+    }
+
+    /**
+     * @param statusFile the status file
+     * @return true if the status file should be streamed rather than read as a whole
+     */
+    public boolean shouldStream(File statusFile) {
+        return this.enabled && statusFile.length() >= this.minSize;
+    }
+
+    /**
+     * Reads the status document without the request entries
+     *
+     * @param statusFile the status file
+     * @return the status document header, the list of requests is empty
+     * @throws ServiceException if the file cannot be read or parsed
+     */
+    public StatusDocument readHeader(File statusFile) throws ServiceException {
+        try (InputStream in = Files.newInputStream(statusFile.toPath())) {
+            XMLEventReader reader = new SkippingEventReader(this.inputFactory.createXMLEventReader(in), this.requestElement);
+            try {
+                Unmarshaller unmarshaller = this.context.createUnmarshaller();
+                return unmarshaller.unmarshal(reader, StatusDocument.class).getValue();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException | JAXBException e) {
+            logger.error("Cannot read status document header '{}': {}", statusFile.getAbsolutePath(), e.getMessage());
+            throw new ServiceException(String.format("Cannot read status document header '%s': %s", statusFile.getAbsolutePath(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Streams the request entries of the status file to the consumer in chunks
+     *
+     * @param statusFile the status file
+     * @param consumer chunk consumer
+     * @throws ServiceException if the file cannot be read or parsed, or if the consumer fails
+     */
+    public void forEachChunk(File statusFile, RequestChunkConsumer consumer) throws ServiceException {
+        try (InputStream in = Files.newInputStream(statusFile.toPath())) {
+            XMLStreamReader reader = this.inputFactory.createXMLStreamReader(in);
+            try {
+                Unmarshaller unmarshaller = this.context.createUnmarshaller();
+                List<Request> chunk = new ArrayList<>(this.chunkSize);
+                while (reader.hasNext()) {
+                    if (reader.getEventType() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(this.requestElement)) {
+                        // Unmarshalling moves the reader past the end of the element
+                        chunk.add(unmarshaller.unmarshal(reader, Request.class).getValue());
+                        if (chunk.size() == this.chunkSize) {
+                            consumer.accept(chunk);
+                            chunk = new ArrayList<>(this.chunkSize);
+                        }
+                        continue;
+                    }
+                    reader.next();
+                }
+
+                if (!chunk.isEmpty()) {
+                    consumer.accept(chunk);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException | JAXBException e) {
+            logger.error("Cannot stream status document '{}': {}", statusFile.getAbsolutePath(), e.getMessage());
+            throw new ServiceException(String.format("Cannot stream status document '%s': %s", statusFile.getAbsolutePath(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Event reader skipping the subtrees of the given element
+     */
+    private static final class SkippingEventReader extends EventReaderDelegate {
+        private final String skippedElement;
+
+        SkippingEventReader(XMLEventReader reader, String skippedElement) {
+            super(reader);
+            this.skippedElement = skippedElement;
+        }
+
+        private void skip() throws XMLStreamException {
+            XMLEventReader parent = this.getParent();
+            while (parent.hasNext()) {
+                XMLEvent event = parent.peek();
+                if (!event.isStartElement() || !event.asStartElement().getName().getLocalPart().equals(this.skippedElement)) {
+                    return;
+                }
+
+                parent.nextEvent();
+                int depth = 1;
+                while (depth > 0) {
+                    XMLEvent skipped = parent.nextEvent();
+                    if (skipped.isStartElement()) {
+                        depth++;
+                    } else if (skipped.isEndElement()) {
+                        depth--;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public XMLEvent nextEvent() throws XMLStreamException {
+            this.skip();
+            return super.nextEvent();
+        }
+
+        @Override
+        public XMLEvent peek() throws XMLStreamException {
+            this.skip();
+            return super.peek();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                this.skip();
+            } catch (XMLStreamException e) {
+                throw new IllegalStateException(e);
+            }
+            return super.hasNext();
+        }
+
+        @Override
+        public Object next() {
+            try {
+                return this.nextEvent();
+            } catch (XMLStreamException e) {
+                throw new NoSuchElementException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.data.Response;
+import axa.partners.clp.mrtdocumentbridge.data.ResponseWrapper;
+import axa.partners.clp.mrtdocumentbridge.data.harmonie.Request;
+import axa.partners.clp.mrtdocumentbridge.data.harmonie.StatusDocument;
+import axa.partners.clp.mrtdocumentbridge.processor.ResponseBuilder;
+import jakarta.xml.bind.JAXBContext;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the time, the allocated bytes and the heap retained while processing a large Harmonie status file: the
+ * former reader, building the whole document and keeping a response wrapper per request, against the streaming
+ * reader, keeping only the status ids. Run with `-Dbenchmark.status_file=` pointing to a large status file.
+ */
+@Tag("benchmark")
+@EnabledIfSystemProperty(named = "benchmark.status_file", matches = ".+")
+class StreamingStatusDocumentReaderBenchmarkTest {
+
+    private static final File STATUS_FILE = new File(System.getProperty("benchmark.status_file", ""));
+
+    private record Measure(long nanos, long allocatedBytes, long retainedBytes, int requests) {
+    }
+
+    @FunctionalInterface
+    private interface Processing {
+        List<?> process() throws Exception;
+    }
+
+    @Test
+    void compareReaders() throws Exception {
+        JAXBContext context = JAXBContext.newInstance(StatusDocument.class, Request.class);
+        StreamingStatusDocumentReader streamingReader = new StreamingStatusDocumentReader(true, 0, 500, "Request");
+
+        Processing documentReader = () -> {
+            StatusDocument document = (StatusDocument) context.createUnmarshaller().unmarshal(STATUS_FILE);
+            List<ResponseWrapper> processedRequests = new ArrayList<>();
+            for (Request request : document.getPrintFile().getRequests()) {
+                processedRequests.add(new ResponseWrapper(response(document), UUID.randomUUID().toString(), null));
+            }
+            return processedRequests;
+        };
+        Processing chunkReader = () -> {
+            StatusDocument document = streamingReader.readHeader(STATUS_FILE);
+            List<String> statusIds = new ArrayList<>();
+            streamingReader.forEachChunk(STATUS_FILE, chunk -> {
+                for (Request request : chunk) {
+                    // The response is sent and dropped once its record is written
+                    response(document);
+                    statusIds.add(UUID.randomUUID().toString());
+                }
+            });
+            return statusIds;
+        };
+
+        // Warm up both readers, so the comparison does not measure the JIT
+        measure(documentReader);
+        measure(chunkReader);
+
+        Measure document = measure(documentReader);
+        Measure streaming = measure(chunkReader);
+
+        System.out.printf("Status file '%s', %d bytes, %d requests%n", STATUS_FILE, STATUS_FILE.length(), document.requests());
+        System.out.printf("  document + wrappers:  %6d ms %12d bytes allocated %12d bytes retained%n",
+                document.nanos() / 1_000_000, document.allocatedBytes(), document.retainedBytes());
+        System.out.printf("  streaming + ids:      %6d ms %12d bytes allocated %12d bytes retained%n",
+                streaming.nanos() / 1_000_000, streaming.allocatedBytes(), streaming.retainedBytes());
+
+        assertEquals(document.requests(), streaming.requests());
+        assertTrue(streaming.retainedBytes() < document.retainedBytes());
+    }
+
+    private static Response response(StatusDocument document) {
+        ResponseBuilder rb = new ResponseBuilder(UUID.randomUUID().toString());
+        rb
+                .withHarmonieStatusCode(document.getStatus())
+                .withStatusCreatedAt(document.getTimestamp());
+        return rb.build();
+    }
+
+    /**
+     * Measures the processing. The retained heap is the heap used after a collection while the processing result
+     * is still referenced, minus the heap used before the processing.
+     */
+    private static Measure measure(Processing processing) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long thread = Thread.currentThread().getId();
+
+        System.gc();
+        long usedBefore = memory.getHeapMemoryUsage().getUsed();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        List<?> result = processing.process();
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        System.gc();
+        long retained = memory.getHeapMemoryUsage().getUsed() - usedBefore;
+
+        return new Measure(nanos, allocated, Math.max(0, retained), result.size());
+    }
+}
@@ -0,0 +1,112 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import io.opentelemetry.api.trace.Span;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Bounds the size of the span attributes. String values are truncated, message bodies are recorded as a digest and
+ * a size, and collections are recorded as a count with their first and last elements. One attribute per element is
+ * only recorded on a sample of the spans, for a bounded number of elements. Nothing is computed for spans that are
+ * not recorded.
+ */
+@Component
+public class TracingPolicy {
+
+    private final int maxAttributeLength;
+
+    private final double elementSampleRate;
+
+    private final int maxElementAttributes;
+
+    /**
+     * Default constructor
+     *
+     * @param maxAttributeLength maximum length of a string attribute, longer values are truncated
+     * @param elementSampleRate fraction of the spans recording one attribute per collection element, from 0 to 1
+     * @param maxElementAttributes maximum number of collection elements recorded on a sampled span
+     */
+    public TracingPolicy(@Value("${tracing.attributes.max_length:256}") int maxAttributeLength,
+                         @Value("${tracing.elements.sample_rate:0.01}") double elementSampleRate,
+                         @Value("${tracing.elements.max_attributes:20}") int maxElementAttributes) {
+        this.maxAttributeLength = maxAttributeLength;
+        this.elementSampleRate = elementSampleRate;
+        this.maxElementAttributes = maxElementAttributes;
+    }
+
+    /**
+     * Records a string attribute, truncated to the maximum length
+     *
+     * @param span the span
+     * @param key attribute key
+     * @param value attribute value, ignored if null
+     */
+    public void setAttribute(Span span, String key, String value) {
+        if (value == null || !span.isRecording()) {
+            return;
+        }
+        span.setAttribute(key, value.length() > this.maxAttributeLength ? value.substring(0, this.maxAttributeLength) : value);
+    }
+
+    /**
+     * Records the size and SHA-256 digest of a content instead of the content itself, as the `{key}_size` and
+     * `{key}_sha256` attributes
+     *
+     * @param span the span
+     * @param key attribute key prefix
+     * @param content the content
+     */
+    public void setDigest(Span span, String key, byte[] content) {
+        if (content == null || !span.isRecording()) {
+            return;
+        }
+        span.setAttribute(key + "_size", content.length);
+        try {
+            span.setAttribute(key + "_sha256", HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records a collection as the `{key}_count`, `{key}_first` and `{key}_last` attributes. On sampled spans, the
+     * first elements are also recorded as `{key}_{index}` attributes.
+     *
+     * @param span the span
+     * @param key attribute key prefix
+     * @param elements the collection
+     * @param value attribute value of an element
+     */
+    public <T> void setCollection(Span span, String key, Collection<T> elements, Function<T, ?> value) {
+        if (elements == null || !span.isRecording()) {
+            return;
+        }
+
+        span.setAttribute(key + "_count", elements.size());
+        if (elements.isEmpty()) {
+            return;
+        }
+
+        boolean sampled = this.elementSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.elementSampleRate;
+        int index = 0;
+        T last = null;
+        for (T element : elements) {
+            if (index == 0) {
+                this.setAttribute(span, key + "_first", String.valueOf(value.apply(element)));
+            }
+            if (sampled && index < this.maxElementAttributes) {
+                this.setAttribute(span, key + "_" + index, String.valueOf(value.apply(element)));
+            }
+            last = element;
+            index++;
+        }
+        this.setAttribute(span, key + "_last", String.valueOf(value.apply(last)));
+    }
+}
@@ -0,0 +1,141 @@
+package axa.partners.clp.mrtdocumentbridge.util;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the bytes allocated by recording the documents of a request batch on a span: the former one attribute
+ * per document, against {@link TracingPolicy#setCollection}. Run with `-Dbenchmark.documents=` to change the batch
+ * size.
+ */
+@Tag("benchmark")
+class TracingPolicyAllocationBenchmarkTest {
+
+    private static final int DOCUMENTS = Integer.getInteger("benchmark.documents", 1_000);
+
+    private static final int ITERATIONS = 1_000;
+
+    private record Document(String requestId, long fileId) {
+    }
+
+    private final TracingPolicy tracingPolicy = new TracingPolicy(256, 0.01, 20);
+
+    @Test
+    void compareAllocations() {
+        List<Document> documents = new ArrayList<>(DOCUMENTS);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            documents.add(new Document(UUID.randomUUID().toString(), 1_000_000L + i));
+        }
+
+        Consumer<Span> perDocument = span -> {
+            int index = 0;
+            for (Document document : documents) {
+                span.setAttribute("request_id_" + index, document.requestId());
+                span.setAttribute("file_id_" + index++, document.fileId());
+            }
+        };
+        Consumer<Span> policy = span -> {
+            this.tracingPolicy.setCollection(span, "request_id", documents, Document::requestId);
+            this.tracingPolicy.setCollection(span, "file_id", documents, Document::fileId);
+        };
+
+        // Warm up both variants, so the comparison does not measure the JIT
+        allocatedBytes(perDocument);
+        allocatedBytes(policy);
+
+        long perDocumentBytes = allocatedBytes(perDocument);
+        long policyBytes = allocatedBytes(policy);
+
+        System.out.printf("Span attributes of a %d document batch%n", DOCUMENTS);
+        System.out.printf("  one attribute per document: %10d bytes/span%n", perDocumentBytes / ITERATIONS);
+        System.out.printf("  tracing policy:             %10d bytes/span%n", policyBytes / ITERATIONS);
+
+        assertTrue(policyBytes < perDocumentBytes);
+    }
+
+    /**
+     * @return bytes allocated by the current thread to record the attributes on {@link #ITERATIONS} spans
+     */
+    private static long allocatedBytes(Consumer<Span> record) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ITERATIONS; i++) {
+            record.accept(new RecordingSpan());
+        }
+        return threads.getThreadAllocatedBytes(thread) - start;
+    }
+
+    /**
+     * Recording span keeping its attributes, as the SDK span does until it is exported
+     */
+    private static final class RecordingSpan implements Span {
+
+        private final Map<AttributeKey<?>, Object> attributes = new HashMap<>();
+
+        @Override
+        public <T> Span setAttribute(AttributeKey<T> key, T value) {
+            this.attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Span addEvent(String name, Attributes attributes) {
+            return this;
+        }
+
+        @Override
+        public Span addEvent(String name, Attributes attributes, long timestamp, TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public Span setStatus(StatusCode statusCode, String description) {
+            return this;
+        }
+
+        @Override
+        public Span recordException(Throwable exception, Attributes additionalAttributes) {
+            return this;
+        }
+
+        @Override
+        public Span updateName(String name) {
+            return this;
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void end(long timestamp, TimeUnit unit) {
+        }
+
+        @Override
+        public SpanContext getSpanContext() {
+            return SpanContext.getInvalid();
+        }
+
+        @Override
+        public boolean isRecording() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package axa.partners.clp.mrtdocumentbridge.service;
+
+import axa.partners.clp.mrtdocumentbridge.exception.ServiceException;
+
+/**
+ * Work executed by {@link ClientService#inUnitOfWork(UnitOfWork)}. All the {@link ClientService} calls made from
+ * within the work share one connection and one transaction.
+ *
+ * @param <T> result type
+ */
+@FunctionalInterface
+public interface UnitOfWork<T> {
+    T execute() throws ServiceException;
+}
@@ -0,0 +1,12 @@
+-- mrt-document-bridge: transactional outbox for the AMQP status responses.
+-- Rows are written in the same transaction as the status records and published by OutboxRelay.
+CREATE TABLE IF NOT EXISTS amqp_outbox (
+    id           BIGSERIAL PRIMARY KEY,
+    created_at   TIMESTAMP    NOT NULL,
+    exchange     VARCHAR(255) NOT NULL,
+    routing_key  VARCHAR(255) NOT NULL,
+    message_id   VARCHAR(255),
+    content_type VARCHAR(255),
+    headers      JSONB,
+    body         BYTEA        NOT NULL
+);
@@ -0,0 +1,11 @@
+-- mrt-document-bridge: parked messages keep their headers in one JSONB column and their payload gzip compressed.
+-- Rows parked before keep payload_encoding 'identity' and their headers in amqp_parking_header.
+-- replayed_at marks the messages already sent back by ParkingLotReplayService, so a replay can be resumed.
+ALTER TABLE amqp_parking ADD COLUMN IF NOT EXISTS id BIGSERIAL;
+ALTER TABLE amqp_parking ADD COLUMN IF NOT EXISTS content_type VARCHAR(255);
+ALTER TABLE amqp_parking ADD COLUMN IF NOT EXISTS headers JSONB;
+ALTER TABLE amqp_parking ADD COLUMN IF NOT EXISTS payload_encoding VARCHAR(16) NOT NULL DEFAULT 'identity';
+ALTER TABLE amqp_parking ADD COLUMN IF NOT EXISTS replayed_at TIMESTAMP;
+
+CREATE UNIQUE INDEX IF NOT EXISTS amqp_parking_id_idx ON amqp_parking (id);
+CREATE INDEX IF NOT EXISTS amqp_parking_pending_replay_idx ON amqp_parking (id) WHERE replayed_at IS NULL;
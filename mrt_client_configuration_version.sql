@@ -0,0 +1,19 @@
+-- mrt-document-bridge: version column polled by ClientConfigurationCache.
+-- Every insert or update of a client configuration takes a new value from the sequence,
+-- deletes are detected through the row count.
+CREATE SEQUENCE IF NOT EXISTS client_configuration_version_seq;
+
+ALTER TABLE client_configuration
+    ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT nextval('client_configuration_version_seq');
+
+CREATE OR REPLACE FUNCTION client_configuration_bump_version() RETURNS trigger AS $$
+BEGIN
+    NEW.version := nextval('client_configuration_version_seq');
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS client_configuration_version_trg ON client_configuration;
+CREATE TRIGGER client_configuration_version_trg
+    BEFORE INSERT OR UPDATE ON client_configuration
+    FOR EACH ROW EXECUTE FUNCTION client_configuration_bump_version();
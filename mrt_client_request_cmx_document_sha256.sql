@@ -0,0 +1,3 @@
+-- mrt-document-bridge: digest of the document uploaded to CMX, so that the document is not uploaded again when the
+-- printed status file of the request is processed again.
+ALTER TABLE client_request ADD COLUMN IF NOT EXISTS cmx_document_sha256 VARCHAR(64);
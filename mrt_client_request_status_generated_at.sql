@@ -0,0 +1,13 @@
+-- mrt-document-bridge: latest status timestamp kept on client_request so that adding a status
+-- does not need to scan request_status_history.
+ALTER TABLE client_request ADD COLUMN IF NOT EXISTS status_generated_at TIMESTAMP;
+
+UPDATE client_request r
+SET status_generated_at = h.status_generated_at
+FROM (
+    SELECT request_id, max(status_generated_at) AS status_generated_at
+    FROM request_status_history
+    GROUP BY request_id
+) h
+WHERE r.id = h.request_id
+  AND r.status_generated_at IS NULL;
@@ -0,0 +1,11 @@
+-- mrt-document-bridge: documents uploaded to CMX whose status records have not been committed yet.
+-- Entries are removed in the transaction storing the status records, or once the document has been deleted from CMX.
+CREATE TABLE IF NOT EXISTS cmx_compensation_journal (
+    document_id      VARCHAR(255) PRIMARY KEY,
+    status_file_name VARCHAR(255) NOT NULL,
+    created_at       TIMESTAMPTZ  NOT NULL,
+    attempts         INTEGER      NOT NULL DEFAULT 0,
+    next_attempt_at  TIMESTAMPTZ
+);
+
+CREATE INDEX IF NOT EXISTS cmx_compensation_journal_created_at_idx ON cmx_compensation_journal (created_at);
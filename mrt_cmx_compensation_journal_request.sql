@@ -0,0 +1,7 @@
+-- mrt-document-bridge: client request and digest of the documents recorded in the compensation journal, so that a
+-- status file processed again reuses the documents uploaded by its earlier attempts instead of uploading them again.
+ALTER TABLE cmx_compensation_journal ADD COLUMN IF NOT EXISTS request_id UUID;
+ALTER TABLE cmx_compensation_journal ADD COLUMN IF NOT EXISTS sha256 VARCHAR(64);
+ALTER TABLE cmx_compensation_journal ADD COLUMN IF NOT EXISTS document_created_at TIMESTAMP;
+
+CREATE INDEX IF NOT EXISTS cmx_compensation_journal_status_file_name_idx ON cmx_compensation_journal (status_file_name, request_id);
@@ -0,0 +1,9 @@
+-- mrt-document-bridge: lease columns for the printed status files, so that the file record is not kept locked
+-- while the documents are uploaded to CMX.
+ALTER TABLE document_processing_log ADD COLUMN IF NOT EXISTS claimed_by VARCHAR(255);
+ALTER TABLE document_processing_log ADD COLUMN IF NOT EXISTS claimed_until TIMESTAMPTZ;
+ALTER TABLE document_processing_log ADD COLUMN IF NOT EXISTS next_attempt_at TIMESTAMPTZ;
+
+-- Required by the ON CONFLICT clause used to create the record of the first attempt
+CREATE UNIQUE INDEX IF NOT EXISTS document_processing_log_status_file_name_idx
+    ON document_processing_log (status_file_name);
@@ -0,0 +1,6 @@
+-- mrt-document-bridge: heartbeats of the replicas sharing the input directory, used to compute the fair share of
+-- input directory partitions of every replica.
+CREATE TABLE IF NOT EXISTS status_file_replica (
+    instance_id  VARCHAR(255) PRIMARY KEY,
+    heartbeat_at TIMESTAMPTZ  NOT NULL
+);